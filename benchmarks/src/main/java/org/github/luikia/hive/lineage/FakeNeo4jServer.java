@@ -0,0 +1,198 @@
+package org.github.luikia.hive.lineage;
+
+import com.google.gson.JsonElement;
+import com.google.gson.JsonParser;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import org.apache.commons.io.IOUtils;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.Objects;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Local stand-in for the neo4j http api, serving /db/data/cypher and /db/data/transaction/commit
+ * on a random port. Nothing is stored, requests are counted and answered after the configured latency.
+ * Failures are injected at random: http 500, a 200 carrying statement errors (transactional endpoint only),
+ * or a hang that holds a server thread much longer than any sane client timeout.
+ */
+public class FakeNeo4jServer implements Closeable {
+
+    private static final byte[] CYPHER_OK = "{\"columns\":[],\"data\":[]}".getBytes(StandardCharsets.UTF_8);
+    private static final byte[] SERVER_ERROR =
+            "{\"errors\":[{\"code\":\"Neo.DatabaseError.General.UnknownError\",\"message\":\"injected\"}]}".getBytes(StandardCharsets.UTF_8);
+    private static final byte[] TX_ERROR =
+            "{\"results\":[],\"errors\":[{\"code\":\"Neo.TransientError.Transaction.DeadlockDetected\",\"message\":\"injected\"}]}".getBytes(StandardCharsets.UTF_8);
+
+    private long latencyMs = 0;
+    private long jitterMs = 0;
+    private double errorRate = 0;
+    private double txErrorRate = 0;
+    private double hangRate = 0;
+    private long hangMs = 60000;
+    private int threads = 64;
+
+    private HttpServer server;
+    private ExecutorService executor;
+
+    private final AtomicLong requests = new AtomicLong();
+    private final AtomicLong statements = new AtomicLong();
+    private final AtomicLong bytesReceived = new AtomicLong();
+    private final AtomicLong errors = new AtomicLong();
+    private final AtomicLong hangs = new AtomicLong();
+
+    /**
+     * Fixed delay before every answer, plus a uniform random delay of up to jitterMs.
+     */
+    public FakeNeo4jServer latency(long latencyMs, long jitterMs) {
+        this.latencyMs = latencyMs;
+        this.jitterMs = jitterMs;
+        return this;
+    }
+
+    /**
+     * Share of requests answered with http 500.
+     */
+    public FakeNeo4jServer errorRate(double errorRate) {
+        this.errorRate = errorRate;
+        return this;
+    }
+
+    /**
+     * Share of transactional requests answered with 200 and a rolled back transaction.
+     */
+    public FakeNeo4jServer txErrorRate(double txErrorRate) {
+        this.txErrorRate = txErrorRate;
+        return this;
+    }
+
+    /**
+     * Share of requests held for hangMs before they are answered.
+     */
+    public FakeNeo4jServer hang(double hangRate, long hangMs) {
+        this.hangRate = hangRate;
+        this.hangMs = hangMs;
+        return this;
+    }
+
+    /**
+     * Requests served at the same time, like the worker threads of a real server.
+     */
+    public FakeNeo4jServer threads(int threads) {
+        this.threads = threads;
+        return this;
+    }
+
+    public FakeNeo4jServer start() throws IOException {
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 1024);
+        server.createContext("/db/data/cypher", ex -> handle(ex, false));
+        server.createContext("/db/data/transaction/commit", ex -> handle(ex, true));
+        executor = Executors.newFixedThreadPool(threads);
+        server.setExecutor(executor);
+        server.start();
+        return this;
+    }
+
+    /**
+     * Value for hive.lineage.neo4j.url.
+     */
+    public String getUrl() {
+        return "http://127.0.0.1:" + server.getAddress().getPort();
+    }
+
+    private void handle(HttpExchange exchange, boolean tx) throws IOException {
+        try {
+            byte[] body = IOUtils.toByteArray(exchange.getRequestBody());
+            requests.incrementAndGet();
+            bytesReceived.addAndGet(body.length);
+            ThreadLocalRandom random = ThreadLocalRandom.current();
+            long delay = latencyMs + (jitterMs > 0 ? random.nextLong(jitterMs + 1) : 0);
+            if (hangRate > 0 && random.nextDouble() < hangRate) {
+                hangs.incrementAndGet();
+                delay = hangMs;
+            }
+            if (delay > 0) {
+                TimeUnit.MILLISECONDS.sleep(delay);
+            }
+            if (errorRate > 0 && random.nextDouble() < errorRate) {
+                errors.incrementAndGet();
+                respond(exchange, 500, SERVER_ERROR);
+                return;
+            }
+            if (!tx) {
+                statements.incrementAndGet();
+                respond(exchange, 200, CYPHER_OK);
+                return;
+            }
+            if (txErrorRate > 0 && random.nextDouble() < txErrorRate) {
+                errors.incrementAndGet();
+                respond(exchange, 200, TX_ERROR);
+                return;
+            }
+            int count = countStatements(body);
+            statements.addAndGet(count);
+            StringBuilder result = new StringBuilder("{\"results\":[");
+            for (int i = 0; i < count; i++) {
+                if (i > 0) result.append(',');
+                result.append("{\"columns\":[],\"data\":[]}");
+            }
+            result.append("],\"errors\":[]}");
+            respond(exchange, 200, result.toString().getBytes(StandardCharsets.UTF_8));
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        } finally {
+            exchange.close();
+        }
+    }
+
+    private static int countStatements(byte[] body) {
+        JsonElement statements = new JsonParser().parse(new String(body, StandardCharsets.UTF_8))
+                .getAsJsonObject().get("statements");
+        return Objects.nonNull(statements) && statements.isJsonArray() ? statements.getAsJsonArray().size() : 0;
+    }
+
+    private static void respond(HttpExchange exchange, int status, byte[] body) throws IOException {
+        exchange.getResponseHeaders().set("Content-Type", "application/json");
+        exchange.sendResponseHeaders(status, body.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(body);
+        }
+    }
+
+    public long getRequests() {
+        return requests.get();
+    }
+
+    /**
+     * Statements accepted, failed requests are not counted.
+     */
+    public long getStatements() {
+        return statements.get();
+    }
+
+    public long getBytesReceived() {
+        return bytesReceived.get();
+    }
+
+    public long getErrors() {
+        return errors.get();
+    }
+
+    public long getHangs() {
+        return hangs.get();
+    }
+
+    @Override
+    public void close() {
+        server.stop(0);
+        executor.shutdownNow();
+    }
+}
@@ -0,0 +1,97 @@
+package org.github.luikia.hive.lineage;
+
+import com.google.gson.Gson;
+import org.apache.hadoop.hive.conf.HiveConf;
+import org.apache.hadoop.hive.ql.session.SessionState;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Edge extraction and edge serialization for each {@link LineageFixture.Scenario}.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class LineageBenchmark {
+
+    @Param
+    public LineageFixture.Scenario scenario;
+
+    private LineageFixture fixture;
+    private List<Edge> edges;
+    private byte[] encoded;
+    private final Gson gson = new Gson();
+
+    @Setup
+    public void setup() throws IOException {
+        SessionState.start(new HiveConf());
+        fixture = new LineageFixture(scenario);
+        edges = fixture.getEdges();
+        encoded = encode();
+    }
+
+    @Benchmark
+    public List<Edge> getEdges() {
+        return fixture.getEdges();
+    }
+
+    /**
+     * Same extraction handed to a sink in batches of 1000 edges, compare allocation with -prof gc.
+     */
+    @Benchmark
+    public void streamEdges(Blackhole bh) {
+        fixture.streamEdges(new LineageEdgeSink() {
+            @Override
+            public void begin(String hqlId) {}
+
+            @Override
+            public void accept(Edge edge) {
+                bh.consume(edge);
+            }
+
+            @Override
+            public void flush() {}
+
+            @Override
+            public void commit() {}
+
+            @Override
+            public void abort() {}
+        }, 1000);
+    }
+
+    @Benchmark
+    public byte[] encodeBinary() throws IOException {
+        return encode();
+    }
+
+    @Benchmark
+    public List<Edge> decodeBinary() throws IOException {
+        return EdgeCodec.read(new DataInputStream(new ByteArrayInputStream(encoded)));
+    }
+
+    /**
+     * Baseline for {@link #encodeBinary()}, the json form batches were spooled in before.
+     */
+    @Benchmark
+    public String encodeJson() {
+        return gson.toJson(edges);
+    }
+
+    private byte[] encode() throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        EdgeCodec.write(new DataOutputStream(bytes), edges);
+        return bytes.toByteArray();
+    }
+}
@@ -0,0 +1,156 @@
+package org.github.luikia.hive.lineage;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Sets;
+import org.apache.hadoop.hive.common.ObjectPair;
+import org.apache.hadoop.hive.conf.HiveConf;
+import org.apache.hadoop.hive.metastore.api.FieldSchema;
+import org.apache.hadoop.hive.metastore.api.Schema;
+import org.apache.hadoop.hive.ql.CompilationOpContext;
+import org.apache.hadoop.hive.ql.exec.ColumnInfo;
+import org.apache.hadoop.hive.ql.exec.SelectOperator;
+import org.apache.hadoop.hive.ql.hooks.LineageInfo;
+import org.apache.hadoop.hive.ql.hooks.WriteEntity;
+import org.apache.hadoop.hive.ql.metadata.Table;
+import org.apache.hadoop.hive.ql.optimizer.lineage.LineageCtx;
+import org.apache.hadoop.hive.serde2.typeinfo.TypeInfoFactory;
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Synthetic lineage index shaped like what the hive optimizer hands to the hook.
+ */
+public class LineageFixture {
+
+    public enum Scenario {
+        /**
+         * 20 target columns, each reading one or two source columns.
+         */
+        NARROW(20, 0, 0),
+        /**
+         * 2000 target columns, as produced by wide fact tables.
+         */
+        WIDE(2000, 0, 0),
+        /**
+         * 50 target columns filtered and joined by 200 predicates.
+         */
+        PREDICATES(50, 200, 0),
+        /**
+         * 50 target columns written into 4 dynamic partition keys.
+         */
+        DYNAMIC_PARTITIONS(50, 0, 4);
+
+        final int columns;
+        final int predicates;
+        final int partitionKeys;
+
+        Scenario(int columns, int predicates, int partitionKeys) {
+            this.columns = columns;
+            this.predicates = predicates;
+            this.partitionKeys = partitionKeys;
+        }
+    }
+
+    private static final int SOURCE_TABLES = 8;
+
+    private final LineageExecuteWithHookContext hook = new LineageExecuteWithHookContext();
+    private final LineageCtx.Index index = new LineageCtx.Index();
+    private final HiveConf conf = new HiveConf();
+    private final Schema resultSchema = new Schema();
+    private final Table target;
+    private final List<FieldSchema> targetCols = Lists.newArrayList();
+
+    public LineageFixture(Scenario scenario) {
+        conf.set("hive.sql.id", "bench_" + scenario.name().toLowerCase());
+        List<org.apache.hadoop.hive.metastore.api.Table> sources = Lists.newArrayList();
+        for (int i = 0; i < SOURCE_TABLES; i++) {
+            org.apache.hadoop.hive.metastore.api.Table t = new org.apache.hadoop.hive.metastore.api.Table();
+            t.setDbName("ods");
+            t.setTableName("src_" + i);
+            sources.add(t);
+        }
+        SelectOperator sop = new SelectOperator(new CompilationOpContext());
+        for (int i = 0; i < scenario.columns + scenario.partitionKeys; i++) {
+            ColumnInfo ci = new ColumnInfo("_col" + i, TypeInfoFactory.stringTypeInfo, null, false);
+            LineageInfo.Dependency dep = new LineageInfo.Dependency();
+            dep.setType(LineageInfo.DependencyType.EXPRESSION);
+            Set<LineageInfo.BaseColumnInfo> baseCols = Sets.newLinkedHashSet();
+            baseCols.add(baseCol(sources.get(i % SOURCE_TABLES), "c" + i));
+            if (i % 3 == 0) {
+                baseCols.add(baseCol(sources.get((i + 1) % SOURCE_TABLES), "c" + (i + 1)));
+                dep.setExpr("concat(src_" + (i % SOURCE_TABLES) + ".c" + i + ", src_" + ((i + 1) % SOURCE_TABLES) + ".c" + (i + 1) + ")");
+            } else {
+                dep.setType(LineageInfo.DependencyType.SIMPLE);
+            }
+            dep.setBaseCols(baseCols);
+            index.putDependency(sop, ci, dep);
+        }
+        for (int i = 0; i < scenario.predicates; i++) {
+            LineageInfo.Predicate cond = new LineageInfo.Predicate();
+            cond.setExpr("(src_" + (i % SOURCE_TABLES) + ".c" + i + " = src_" + ((i + 1) % SOURCE_TABLES) + ".c" + i + ")");
+            cond.getBaseCols().add(baseCol(sources.get(i % SOURCE_TABLES), "c" + i));
+            cond.getBaseCols().add(baseCol(sources.get((i + 1) % SOURCE_TABLES), "c" + i));
+            cond.getBaseCols().add(baseCol(sources.get((i + 2) % SOURCE_TABLES), "k"));
+            index.addPredicate(sop, cond);
+        }
+        for (int i = 0; i < scenario.columns; i++) {
+            targetCols.add(new FieldSchema("c" + i, "string", "column " + i));
+        }
+        List<FieldSchema> partCols = Lists.newArrayList();
+        for (int i = 0; i < scenario.partitionKeys; i++) {
+            partCols.add(new FieldSchema("p" + i, "string", "partition " + i));
+        }
+        target = new Table("dw", "dst_" + scenario.name().toLowerCase());
+        target.setFields(Lists.newArrayList(targetCols));
+        target.setPartCols(partCols);
+        index.getFinalSelectOps().put("SEL_0", new ObjectPair<>(sop, target));
+        resultSchema.setFieldSchemas(Lists.newArrayList(targetCols));
+    }
+
+    private static LineageInfo.BaseColumnInfo baseCol(org.apache.hadoop.hive.metastore.api.Table table, String col) {
+        LineageInfo.TableAliasInfo alias = new LineageInfo.TableAliasInfo();
+        alias.setAlias(table.getTableName());
+        alias.setTable(table);
+        LineageInfo.BaseColumnInfo base = new LineageInfo.BaseColumnInfo();
+        base.setTabAlias(alias);
+        base.setColumn(new FieldSchema(col, "string", null));
+        return base;
+    }
+
+    /**
+     * Run edge extraction the way the hook does for this query.
+     */
+    public List<Edge> getEdges() {
+        // getEdges appends dynamic partition keys to the target columns, start from a fresh copy
+        target.setFields(Lists.newArrayList(targetCols));
+        return hook.getEdges(resultSchema, Collections.<WriteEntity>emptyList(), index, conf);
+    }
+
+    /**
+     * Run edge extraction the way the hook does with hive.lineage.stream.enable on.
+     */
+    public void streamEdges(LineageEdgeSink sink, int batchEdges) {
+        target.setFields(Lists.newArrayList(targetCols));
+        sink.begin(null);
+        hook.emitEdges(resultSchema, Collections.<WriteEntity>emptyList(), index, conf, sink, batchEdges);
+        sink.commit();
+    }
+
+    /**
+     * Settings the hook reads, hive.lineage.* and hive.sql.id can be changed between runs.
+     */
+    public HiveConf getConf() {
+        return conf;
+    }
+
+    /**
+     * Run the whole hook for this query: extraction and delivery to the configured stores.
+     */
+    public void runHook() throws IOException {
+        target.setFields(Lists.newArrayList(targetCols));
+        hook.process(resultSchema, Collections.<WriteEntity>emptyList(), index, conf, System.nanoTime());
+    }
+}
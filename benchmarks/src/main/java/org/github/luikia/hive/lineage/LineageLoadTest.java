@@ -0,0 +1,248 @@
+package org.github.luikia.hive.lineage;
+
+import com.google.common.collect.Lists;
+import org.apache.commons.lang3.StringUtils;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.hive.conf.HiveConf;
+import org.apache.hadoop.hive.ql.session.SessionState;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Runs the hook concurrently from many simulated HiveServer2 sessions against a {@link FakeNeo4jServer}
+ * and reports hook latency, statement throughput and heap use.
+ * <p>
+ * java -cp target/benchmarks.jar org.github.luikia.hive.lineage.LineageLoadTest [key=value ...]
+ * <p>
+ * load.* keys drive the harness, see the defaults below; hive.lineage.* keys are passed to the hook,
+ * e.g. hive.lineage.async.enable=true or hive.lineage.neo4j.batch.size=1.
+ */
+public class LineageLoadTest {
+
+    public static void main(String[] args) throws Exception {
+        Configuration conf = new Configuration(false);
+        conf.set("hive.lineage.store.classes", "org.github.luikia.hive.lineage.store.Neo4JLineageEdgeStore");
+        conf.set("hive.lineage.neo4j.username", "neo4j");
+        conf.set("hive.lineage.neo4j.password", "neo4j");
+        for (String arg : args) {
+            String key = StringUtils.substringBefore(arg, "=");
+            if (!arg.contains("=") || StringUtils.isBlank(key)) {
+                System.err.println("usage: LineageLoadTest [key=value ...]");
+                System.exit(2);
+            }
+            conf.set(key.trim(), StringUtils.substringAfter(arg, "=").trim());
+        }
+        int sessions = conf.getInt("load.sessions", 32);
+        long durationMs = TimeUnit.SECONDS.toMillis(conf.getLong("load.duration.s", 30));
+        long warmupMs = TimeUnit.SECONDS.toMillis(conf.getLong("load.warmup.s", 5));
+        long thinkMs = conf.getLong("load.think.ms", 0);
+        // a new hive.sql.id per query makes every statement new for the store caches, false replays the same query
+        boolean uniqueHql = conf.getBoolean("load.unique.hql", true);
+        LineageFixture.Scenario scenario = LineageFixture.Scenario.valueOf(
+                StringUtils.upperCase(conf.getTrimmed("load.scenario", LineageFixture.Scenario.NARROW.name())));
+
+        FakeNeo4jServer server = new FakeNeo4jServer()
+                .latency(conf.getLong("load.latency.ms", 5), conf.getLong("load.jitter.ms", 5))
+                .errorRate(conf.getDouble("load.error.rate", 0))
+                .txErrorRate(conf.getDouble("load.tx.error.rate", 0))
+                .hang(conf.getDouble("load.hang.rate", 0), conf.getLong("load.hang.ms", 60000))
+                .threads(conf.getInt("load.server.threads", 64))
+                .start();
+        if (Objects.isNull(conf.get("hive.lineage.neo4j.url"))) {
+            conf.set("hive.lineage.neo4j.url", server.getUrl());
+        }
+        Map<String, String> settings = conf.getValByRegex(LineageEdgeStoreRegistry.LINEAGE_CONF_REGEX);
+
+        HeapSampler heap = new HeapSampler();
+        heap.start();
+        long startMs = System.currentTimeMillis();
+        long measureFrom = startMs + warmupMs;
+        long endMs = measureFrom + durationMs;
+        List<Session> workers = Lists.newArrayListWithCapacity(sessions);
+        CountDownLatch done = new CountDownLatch(sessions);
+        for (int i = 0; i < sessions; i++) {
+            Session session = new Session(i, scenario, settings, uniqueHql, thinkMs, measureFrom, endMs, done);
+            workers.add(session);
+            session.start();
+        }
+        long statementsAtStart = waitUntil(measureFrom, server);
+        done.await();
+        // queued lineage still counts against this run
+        AsyncLineageDispatcher dispatcher = AsyncLineageDispatcher.current();
+        if (Objects.nonNull(dispatcher)) {
+            dispatcher.close();
+        }
+        long measuredMs = System.currentTimeMillis() - measureFrom;
+        long statements = server.getStatements() - statementsAtStart;
+        heap.interrupt();
+
+        long queries = 0;
+        long failures = 0;
+        int sampleCount = 0;
+        for (Session session : workers) {
+            queries += session.queries;
+            failures += session.failures;
+            sampleCount += session.count;
+        }
+        long[] all = new long[sampleCount];
+        int pos = 0;
+        for (Session session : workers) {
+            System.arraycopy(session.latencies, 0, all, pos, session.count);
+            pos += session.count;
+        }
+        Arrays.sort(all);
+        Runtime rt = Runtime.getRuntime();
+        System.gc();
+        LineageMetrics metrics = LineageMetrics.get();
+
+        System.out.println("scenario:            " + scenario + ", sessions:" + sessions + ", measured:" + measuredMs + "ms");
+        System.out.println("queries:             " + queries + " (" + perSecond(queries, measuredMs) + "/s), failures:" + failures);
+        System.out.println("hook latency (ms):   p50=" + millis(percentile(all, 0.5)) + " p99=" + millis(percentile(all, 0.99))
+                + " max=" + millis(all.length == 0 ? 0 : all[all.length - 1]));
+        System.out.println("statements:          " + statements + " (" + perSecond(statements, measuredMs) + "/s)");
+        System.out.println("neo4j requests:      " + server.getRequests() + ", injected errors:" + server.getErrors()
+                + ", hangs:" + server.getHangs() + ", bytes received:" + server.getBytesReceived());
+        System.out.println("client request (us): p50=" + metrics.getNeo4jRequestLatency().getP50()
+                + " p99=" + metrics.getNeo4jRequestLatency().getP99() + ", http errors:" + metrics.getHttpErrors()
+                + ", retries:" + metrics.getRetries());
+        System.out.println("store failures:      " + metrics.getStoreFailures() + ", timeouts:" + metrics.getStoreTimeouts()
+                + ", short-circuited:" + metrics.getStoreShortCircuited() + ", breakers:" + metrics.getStoreBreakerStates());
+        System.out.println("async queue dropped: " + metrics.getQueueDropped() + ", coalesced edges:" + metrics.getCoalescedEdges());
+        System.out.println("heap (MB):           peak=" + mb(heap.peak.get()) + " after gc=" + mb(rt.totalMemory() - rt.freeMemory())
+                + " max=" + mb(rt.maxMemory()));
+        server.close();
+        System.exit(0);
+    }
+
+    private static long waitUntil(long timeMs, FakeNeo4jServer server) throws InterruptedException {
+        long wait = timeMs - System.currentTimeMillis();
+        if (wait > 0) {
+            Thread.sleep(wait);
+        }
+        return server.getStatements();
+    }
+
+    private static long percentile(long[] sorted, double p) {
+        if (sorted.length == 0) return 0;
+        return sorted[Math.min(sorted.length - 1, (int) Math.ceil(p * sorted.length) - 1)];
+    }
+
+    private static String millis(long nanos) {
+        return String.format("%.2f", nanos / 1e6);
+    }
+
+    private static long perSecond(long count, long ms) {
+        return ms <= 0 ? 0 : count * 1000 / ms;
+    }
+
+    private static long mb(long bytes) {
+        return bytes / (1024 * 1024);
+    }
+
+    /**
+     * One simulated session: its own SessionState and query, run back to back.
+     */
+    private static final class Session extends Thread {
+        private final LineageFixture.Scenario scenario;
+        private final Map<String, String> settings;
+        private final boolean uniqueHql;
+        private final long thinkMs;
+        private final long measureFrom;
+        private final long endMs;
+        private final CountDownLatch done;
+
+        private long[] latencies = new long[1024];
+        private int count = 0;
+        private long queries = 0;
+        private long failures = 0;
+
+        Session(int id, LineageFixture.Scenario scenario, Map<String, String> settings, boolean uniqueHql,
+                long thinkMs, long measureFrom, long endMs, CountDownLatch done) {
+            super("load-session-" + id);
+            this.scenario = scenario;
+            this.settings = settings;
+            this.uniqueHql = uniqueHql;
+            this.thinkMs = thinkMs;
+            this.measureFrom = measureFrom;
+            this.endMs = endMs;
+            this.done = done;
+        }
+
+        @Override
+        public void run() {
+            try {
+                SessionState.start(new HiveConf());
+                LineageFixture fixture = new LineageFixture(scenario);
+                HiveConf conf = fixture.getConf();
+                settings.forEach(conf::set);
+                String hqlId = conf.get("hive.sql.id") + "_" + getName();
+                long seq = 0;
+                while (true) {
+                    long now = System.currentTimeMillis();
+                    if (now >= endMs) break;
+                    if (uniqueHql) {
+                        conf.set("hive.sql.id", hqlId + "_" + seq++);
+                    }
+                    long start = System.nanoTime();
+                    boolean failed = false;
+                    try {
+                        fixture.runHook();
+                    } catch (Exception ex) {
+                        failed = true;
+                    }
+                    long latency = System.nanoTime() - start;
+                    if (now >= measureFrom) {
+                        queries++;
+                        if (failed) failures++;
+                        record(latency);
+                    }
+                    if (thinkMs > 0) {
+                        Thread.sleep(thinkMs);
+                    }
+                }
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+            } finally {
+                done.countDown();
+            }
+        }
+
+        private void record(long latency) {
+            if (count == latencies.length) {
+                latencies = Arrays.copyOf(latencies, count * 2);
+            }
+            latencies[count++] = latency;
+        }
+    }
+
+    /**
+     * Samples used heap every 100ms and keeps the highest value seen.
+     */
+    private static final class HeapSampler extends Thread {
+        private final AtomicLong peak = new AtomicLong();
+
+        HeapSampler() {
+            super("load-heap-sampler");
+            setDaemon(true);
+        }
+
+        @Override
+        public void run() {
+            Runtime rt = Runtime.getRuntime();
+            while (!isInterrupted()) {
+                peak.accumulateAndGet(rt.totalMemory() - rt.freeMemory(), Math::max);
+                try {
+                    Thread.sleep(100);
+                } catch (InterruptedException ex) {
+                    return;
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,110 @@
+package org.github.luikia.hive.lineage.store;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonObject;
+import com.google.gson.stream.JsonWriter;
+import org.apache.commons.io.output.NullWriter;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.hive.conf.HiveConf;
+import org.apache.hadoop.hive.ql.session.SessionState;
+import org.github.luikia.hive.lineage.Edge;
+import org.github.luikia.hive.lineage.LineageFixture;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+
+/**
+ * Cypher generation and request body rendering of the neo4j store. Nothing is sent over the wire.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class Neo4JLineageBenchmark {
+
+    @Param
+    public LineageFixture.Scenario scenario;
+
+    @Param({"inline", "hashed"})
+    public String exprMode;
+
+    @Param({"pairwise", "hyperedge"})
+    public String model;
+
+    private Neo4JLineageEdgeStore store;
+    private List<Edge> edges;
+    private List<Neo4JLineageEdgeStore.Neo4jEntity> entities;
+    private final Gson gson = new Gson();
+
+    @Setup
+    public void setup() {
+        SessionState.start(new HiveConf());
+        Configuration conf = new Configuration(false);
+        conf.set("hive.lineage.neo4j.url", "http://localhost:7474");
+        conf.set("hive.lineage.neo4j.expr.mode", exprMode);
+        conf.set("hive.lineage.neo4j.model", model);
+        store = new Neo4JLineageEdgeStore();
+        store.init(conf);
+        edges = new LineageFixture(scenario).getEdges().stream()
+                .filter(e -> e.getType() == Edge.Type.PROJECTION)
+                .collect(Collectors.toList());
+        entities = edges.stream().flatMap(store::convertEdgeToCQL).collect(Collectors.toList());
+    }
+
+    @TearDown
+    public void tearDown() {
+        store.close();
+    }
+
+    @Benchmark
+    public void convertEdgeToCQL(Blackhole bh) {
+        for (Edge edge : edges) {
+            store.convertEdgeToCQL(edge).forEach(bh::consume);
+        }
+    }
+
+    /**
+     * Streamed body of the legacy /db/data/cypher endpoint, one request per statement.
+     */
+    @Benchmark
+    public void httpBody() throws IOException {
+        for (Neo4JLineageEdgeStore.Neo4jEntity entity : entities) {
+            JsonWriter writer = new JsonWriter(new NullWriter());
+            entity.writeHttpBody(writer);
+            writer.flush();
+        }
+    }
+
+    /**
+     * Baseline for {@link #httpBody()}, the json tree rendered to a string as the store did before streaming.
+     */
+    @Benchmark
+    public void httpBodyTree(Blackhole bh) {
+        for (Neo4JLineageEdgeStore.Neo4jEntity entity : entities) {
+            JsonObject json = new JsonObject();
+            json.addProperty("query", entity.getCql());
+            json.add("params", gson.toJsonTree(entity.getArgs()));
+            bh.consume(json.toString());
+        }
+    }
+
+    /**
+     * Streamed body of the transactional endpoint with every statement in one request.
+     */
+    @Benchmark
+    public void transactionBody() throws IOException {
+        JsonWriter writer = new JsonWriter(new NullWriter());
+        writer.beginObject().name("statements").beginArray();
+        for (Neo4JLineageEdgeStore.Neo4jEntity entity : entities) {
+            entity.writeStatement(writer);
+        }
+        writer.endArray().endObject();
+        writer.flush();
+    }
+}
@@ -0,0 +1,218 @@
+package org.github.luikia.hive.lineage;
+
+import com.google.common.collect.Lists;
+import org.apache.commons.lang3.StringUtils;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.util.ShutdownHookManager;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.Objects;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Ships lineage edges to the stores on a background thread,
+ * so the pre-exec hook only pays for an enqueue.
+ * With a coalescing window the batches queued within the window are merged
+ * by {@link LineageCoalescer} and each store gets one deduplicated batch.
+ */
+public class AsyncLineageDispatcher {
+    private static final Logger LOG = LoggerFactory.getLogger(AsyncLineageDispatcher.class);
+
+    public enum OverflowPolicy {DROP, BLOCK, SPILL}
+
+    private static final int SHUTDOWN_HOOK_PRIORITY = 20;
+
+    private static volatile AsyncLineageDispatcher instance;
+
+    private final BlockingQueue<LineageBatch> queue;
+    private final OverflowPolicy policy;
+    private final long blockTimeoutMs;
+    private final long shutdownTimeoutMs;
+    private final LineageSpool spool;
+    private final long coalesceWindowNanos;
+    private final int coalesceMaxEdges;
+    private final AtomicLong dropped = new AtomicLong();
+    private final AtomicLong coalesced = new AtomicLong();
+    private final Thread worker;
+    private volatile boolean closed = false;
+
+    public static boolean isEnabled(Configuration conf) {
+        return conf.getBoolean("hive.lineage.async.enable", false);
+    }
+
+    /**
+     * The running dispatcher, or null when async delivery was never used.
+     */
+    public static AsyncLineageDispatcher current() {
+        return instance;
+    }
+
+    public static AsyncLineageDispatcher get(Configuration conf) {
+        if (Objects.isNull(instance)) {
+            synchronized (AsyncLineageDispatcher.class) {
+                if (Objects.isNull(instance)) {
+                    instance = new AsyncLineageDispatcher(conf);
+                }
+            }
+        }
+        return instance;
+    }
+
+    private AsyncLineageDispatcher(Configuration conf) {
+        this.queue = new ArrayBlockingQueue<>(conf.getInt("hive.lineage.async.queue.capacity", 1024));
+        this.policy = OverflowPolicy.valueOf(StringUtils.upperCase(
+                conf.getTrimmed("hive.lineage.async.overflow.policy", OverflowPolicy.DROP.name())));
+        this.blockTimeoutMs = conf.getLong("hive.lineage.async.block.timeout.ms", 0L);
+        this.shutdownTimeoutMs = conf.getLong("hive.lineage.async.shutdown.timeout.ms", 30000L);
+        this.coalesceWindowNanos = TimeUnit.MILLISECONDS.toNanos(conf.getLong("hive.lineage.async.coalesce.window.ms", 0L));
+        this.coalesceMaxEdges = conf.getInt("hive.lineage.async.coalesce.max.edges", 10000);
+        if (this.policy == OverflowPolicy.SPILL && !LineageSpool.isConfigured(conf)) {
+            throw new IllegalArgumentException("hive.lineage.spool.dir must be set for SPILL policy");
+        }
+        this.spool = LineageSpool.isConfigured(conf) ? LineageSpool.get(conf) : null;
+        this.worker = new Thread(this::dispatch, "lineage-dispatcher");
+        this.worker.setDaemon(true);
+        this.worker.start();
+        ShutdownHookManager.get().addShutdownHook(this::close, SHUTDOWN_HOOK_PRIORITY);
+    }
+
+    /**
+     * Hand edges over to the dispatcher, applying the overflow policy when the queue is full.
+     */
+    public void submit(Configuration conf, List<Edge> edges) {
+        LineageBatch batch = LineageBatch.of(conf, edges);
+        if (closed) {
+            overflow(batch);
+            return;
+        }
+        if (queue.offer(batch)) {
+            return;
+        }
+        if (policy == OverflowPolicy.BLOCK) {
+            try {
+                if (blockTimeoutMs <= 0) {
+                    queue.put(batch);
+                    return;
+                }
+                if (queue.offer(batch, blockTimeoutMs, TimeUnit.MILLISECONDS)) {
+                    return;
+                }
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        overflow(batch);
+    }
+
+    public int getQueueSize() {
+        return queue.size();
+    }
+
+    public long getDropped() {
+        return dropped.get();
+    }
+
+    /**
+     * Edges merged away by the coalescing window.
+     */
+    public long getCoalesced() {
+        return coalesced.get();
+    }
+
+    /**
+     * Stop accepting batches and drain what is queued, bounded by the shutdown timeout.
+     * Anything left over goes to the spool when one is configured.
+     */
+    public void close() {
+        if (closed) return;
+        closed = true;
+        try {
+            worker.join(shutdownTimeoutMs);
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+        worker.interrupt();
+        List<LineageBatch> rest = Lists.newArrayList();
+        queue.drainTo(rest);
+        rest.forEach(this::overflow);
+        if (dropped.get() > 0) {
+            LOG.warn("lineage dispatcher dropped " + dropped.get() + " batches");
+        }
+    }
+
+    private void overflow(LineageBatch batch) {
+        if (Objects.nonNull(spool) && (policy == OverflowPolicy.SPILL || closed)) {
+            try {
+                spool.append(batch);
+                return;
+            } catch (IOException ex) {
+                LOG.error("spill lineage error", ex);
+            }
+        }
+        dropped.incrementAndGet();
+    }
+
+    private void dispatch() {
+        while (!closed || !queue.isEmpty()) {
+            try {
+                LineageBatch batch = queue.poll(1, TimeUnit.SECONDS);
+                if (Objects.isNull(batch)) {
+                    continue;
+                }
+                if (coalesceWindowNanos <= 0) {
+                    if (!LineageEdgeStore.storeAll(batch.toConf(), batch.getEdges())) {
+                        overflow(batch);
+                    }
+                    continue;
+                }
+                LineageCoalescer coalescer = new LineageCoalescer();
+                coalescer.add(batch);
+                boolean interrupted = collect(coalescer);
+                coalesced.addAndGet(coalescer.getReceived() - coalescer.size());
+                for (LineageBatch merged : coalescer.getBatches()) {
+                    // a failed store is spilled like a full queue, stores are idempotent on replay
+                    if (interrupted || !LineageEdgeStore.storeAll(merged.toConf(), merged.getEdges())) {
+                        overflow(merged);
+                    }
+                }
+                if (interrupted) {
+                    return;
+                }
+            } catch (InterruptedException ex) {
+                return;
+            } catch (Throwable t) {
+                LOG.error("dispatch lineage error", t);
+            }
+        }
+    }
+
+    /**
+     * Keep taking batches until the window ends or enough edges are collected,
+     * a backlog queued behind the window is merged too.
+     *
+     * @return true if interrupted while waiting
+     */
+    private boolean collect(LineageCoalescer coalescer) {
+        long deadline = System.nanoTime() + coalesceWindowNanos;
+        while (coalescer.size() < coalesceMaxEdges) {
+            long left = deadline - System.nanoTime();
+            LineageBatch next;
+            try {
+                next = closed || left <= 0 ? queue.poll() : queue.poll(left, TimeUnit.NANOSECONDS);
+            } catch (InterruptedException ex) {
+                return true;
+            }
+            if (Objects.isNull(next)) {
+                return false;
+            }
+            coalescer.add(next);
+        }
+        return false;
+    }
+}
@@ -0,0 +1,112 @@
+package org.github.luikia.hive.lineage;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+
+/**
+ * Versioned binary encoding of edges, for the spool and for stores that do not speak http.
+ * <p>
+ * Layout: version byte, vertex dictionary (type, label, comment), then per edge its type,
+ * expr, hql and source/target vertices as dictionary indexes. Each vertex label is written once
+ * per call no matter how many edges share it.
+ */
+public final class EdgeCodec {
+
+    public static final byte VERSION = 1;
+
+    private EdgeCodec() {}
+
+    public static void write(DataOutput out, Collection<Edge> edges) throws IOException {
+        Map<Vertex, Integer> ids = Maps.newLinkedHashMap();
+        for (Edge edge : edges) {
+            edge.getSources().forEach(v -> ids.putIfAbsent(v, ids.size()));
+            edge.getTargets().forEach(v -> ids.putIfAbsent(v, ids.size()));
+        }
+        out.writeByte(VERSION);
+        out.writeInt(ids.size());
+        for (Vertex v : ids.keySet()) {
+            out.writeByte(v.getType().ordinal());
+            writeString(out, v.getLabel());
+            writeString(out, v.getComment());
+        }
+        out.writeInt(edges.size());
+        for (Edge edge : edges) {
+            out.writeByte(edge.getType().ordinal());
+            writeString(out, edge.getExpr());
+            writeString(out, edge.getHql());
+            writeVertices(out, edge.getSources(), ids);
+            writeVertices(out, edge.getTargets(), ids);
+        }
+    }
+
+    public static List<Edge> read(DataInput in) throws IOException {
+        byte version = in.readByte();
+        if (version != VERSION) {
+            throw new IOException("unsupported edge encoding version " + version);
+        }
+        Vertex[] vertices = new Vertex[in.readInt()];
+        for (int i = 0; i < vertices.length; i++) {
+            Vertex.Type type = Vertex.Type.values()[in.readByte()];
+            String label = readString(in);
+            vertices[i] = Vertex.of(label, type, readString(in));
+        }
+        int count = in.readInt();
+        List<Edge> edges = Lists.newArrayListWithCapacity(count);
+        for (int i = 0; i < count; i++) {
+            Edge.Type type = Edge.Type.values()[in.readByte()];
+            String expr = readString(in);
+            String hql = readString(in);
+            Set<Vertex> sources = readVertices(in, vertices);
+            edges.add(Edge.of(sources, readVertices(in, vertices), expr, hql, type));
+        }
+        return edges;
+    }
+
+    /**
+     * Length-prefixed UTF-8, -1 for null. Expressions may exceed the 64k limit of writeUTF.
+     */
+    public static void writeString(DataOutput out, String s) throws IOException {
+        if (Objects.isNull(s)) {
+            out.writeInt(-1);
+            return;
+        }
+        byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    public static String readString(DataInput in) throws IOException {
+        int length = in.readInt();
+        if (length < 0) return null;
+        byte[] bytes = new byte[length];
+        in.readFully(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private static void writeVertices(DataOutput out, Set<Vertex> vertices, Map<Vertex, Integer> ids) throws IOException {
+        out.writeInt(vertices.size());
+        for (Vertex v : vertices) {
+            out.writeInt(ids.get(v));
+        }
+    }
+
+    private static Set<Vertex> readVertices(DataInput in, Vertex[] vertices) throws IOException {
+        int size = in.readInt();
+        Set<Vertex> set = Sets.newLinkedHashSetWithExpectedSize(size);
+        for (int i = 0; i < size; i++) {
+            set.add(vertices[in.readInt()]);
+        }
+        return set;
+    }
+}
@@ -0,0 +1,93 @@
+package org.github.luikia.hive.lineage;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import org.apache.commons.lang.StringUtils;
+
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+
+/**
+ * Edges of a query indexed by type, expression, hql and source vertices,
+ * so finding the edge to merge new targets into is a hash lookup instead of a scan.
+ */
+class EdgeIndex {
+
+    private List<Edge> edges = Lists.newArrayList();
+
+    private final Map<Key, Edge> index = Maps.newHashMap();
+
+    /**
+     * Find an edge that has the same type, expression, hql and sources.
+     * If found, add the targets to this edge's target vertex list.
+     * Otherwise, create a new edge and add it to the edge list.
+     */
+    void add(Set<Vertex> sources, Set<Vertex> targets, String expr, String hql, Edge.Type type) {
+        Edge edge = null;
+        // stored edges expose a normalized expr and hql, a raw value can only match when it is already normalized
+        if (Objects.nonNull(expr) && Objects.nonNull(hql) && !StringUtils.contains(expr, "'")) {
+            edge = index.get(new Key(type, expr, hql, sources));
+        }
+        if (Objects.isNull(edge)) {
+            edge = Edge.of(sources, targets, expr, hql, type);
+            edges.add(edge);
+            index.putIfAbsent(new Key(type, edge.getExpr(), edge.getHql(), sources), edge);
+        } else {
+            edge.getTargets().addAll(targets);
+        }
+    }
+
+    List<Edge> getEdges() {
+        return edges;
+    }
+
+    int size() {
+        return edges.size();
+    }
+
+    /**
+     * Take the edges collected so far and start over, later edges are not merged into them.
+     */
+    List<Edge> drain() {
+        List<Edge> drained = edges;
+        edges = Lists.newArrayList();
+        index.clear();
+        return drained;
+    }
+
+    private static final class Key {
+        private final Edge.Type type;
+        private final String expr;
+        private final String hql;
+        private final Set<Vertex> sources;
+        private final int hash;
+
+        private Key(Edge.Type type, String expr, String hql, Set<Vertex> sources) {
+            this.type = type;
+            this.expr = expr;
+            this.hql = hql;
+            this.sources = sources;
+            this.hash = Objects.hash(type, expr, hql, sources);
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (this == obj) {
+                return true;
+            }
+            if (!(obj instanceof Key)) {
+                return false;
+            }
+            Key key = (Key) obj;
+            return hash == key.hash && type == key.type && expr.equals(key.expr)
+                    && hql.equals(key.hql) && sources.equals(key.sources);
+        }
+    }
+}
@@ -0,0 +1,254 @@
+package org.github.luikia.hive.lineage;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Sets;
+import org.apache.commons.lang3.StringUtils;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.conf.Configured;
+import org.apache.hadoop.hive.conf.HiveConf;
+import org.apache.hadoop.hive.ql.Driver;
+import org.apache.hadoop.hive.ql.QueryPlan;
+import org.apache.hadoop.hive.ql.hooks.LineageLogger;
+import org.apache.hadoop.hive.ql.session.SessionState;
+import org.apache.hadoop.util.Tool;
+import org.apache.hadoop.util.ToolRunner;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.List;
+import java.util.Objects;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * Backfills lineage for a directory of hql scripts without running them.
+ * Every worker thread owns a {@link SessionState} and compiles scripts one statement at a time,
+ * edges are extracted the same way as in the hook and handed to the configured stores in batches.
+ * <p>
+ * hadoop jar hive_lineage_plugin.jar org.github.luikia.hive.lineage.LineageBackfillDriver [-D key=value ...] &lt;script dir&gt;
+ */
+public class LineageBackfillDriver extends Configured implements Tool {
+    private static final Logger LOG = LoggerFactory.getLogger(LineageBackfillDriver.class);
+
+    private final AtomicInteger scripts = new AtomicInteger();
+    private final AtomicInteger failedScripts = new AtomicInteger();
+    private final AtomicInteger statements = new AtomicInteger();
+    private final AtomicInteger edges = new AtomicInteger();
+    private final AtomicInteger failedBatches = new AtomicInteger();
+    private final AtomicInteger failedEdges = new AtomicInteger();
+
+    public static void main(String[] args) throws Exception {
+        System.exit(ToolRunner.run(new HiveConf(), new LineageBackfillDriver(), args));
+    }
+
+    @Override
+    public int run(String[] args) throws Exception {
+        if (args.length != 1) {
+            System.err.println("usage: LineageBackfillDriver [-D key=value ...] <script dir>");
+            return 2;
+        }
+        Configuration conf = getConf();
+        Path root = Paths.get(args[0]);
+        String[] suffixes = conf.getTrimmedStrings("hive.lineage.backfill.suffixes", ".hql", ".sql");
+        Queue<Path> files;
+        try (Stream<Path> walk = Files.walk(root)) {
+            files = walk.filter(Files::isRegularFile)
+                    .filter(p -> StringUtils.endsWithAny(p.getFileName().toString(), suffixes))
+                    .sorted()
+                    .collect(Collectors.toCollection(ConcurrentLinkedQueue::new));
+        }
+        int parallelism = conf.getInt("hive.lineage.backfill.parallelism", Runtime.getRuntime().availableProcessors());
+        String report = conf.getTrimmed("hive.lineage.backfill.report", "lineage-backfill-failures.tsv");
+        LOG.info("lineage backfill of " + files.size() + " scripts under " + root + " with " + parallelism + " workers");
+        long start = System.currentTimeMillis();
+        ExecutorService pool = Executors.newFixedThreadPool(parallelism);
+        try (PrintWriter failures = new PrintWriter(Files.newBufferedWriter(Paths.get(report), StandardCharsets.UTF_8))) {
+            List<Future<?>> workers = Lists.newArrayList();
+            for (int i = 0; i < parallelism; i++) {
+                workers.add(pool.submit(() -> work(root, files, failures)));
+            }
+            for (Future<?> worker : workers) {
+                worker.get();
+            }
+        } finally {
+            pool.shutdownNow();
+            LineageEdgeStoreRegistry.close();
+        }
+        LOG.info("lineage backfill finished in " + (System.currentTimeMillis() - start) + "ms,scripts:" + scripts.get()
+                + ",failed:" + failedScripts.get() + ",statements:" + statements.get() + ",edges:" + edges.get()
+                + ",failed store batches:" + failedBatches.get() + ",failed edges:" + failedEdges.get() + ",report:" + report);
+        return failedScripts.get() > 0 || failedBatches.get() > 0 ? 1 : 0;
+    }
+
+    private void work(Path root, Queue<Path> files, PrintWriter failures) {
+        HiveConf base = new HiveConf(getConf(), LineageBackfillDriver.class);
+        // lineage is only collected by the optimizer when the LineageLogger hook is configured
+        String postHooks = base.getTrimmed(HiveConf.ConfVars.POSTEXECHOOKS.varname, "");
+        if (!postHooks.contains(LineageLogger.class.getName())) {
+            base.set(HiveConf.ConfVars.POSTEXECHOOKS.varname,
+                    StringUtils.isEmpty(postHooks) ? LineageLogger.class.getName() : postHooks + "," + LineageLogger.class.getName());
+        }
+        SessionState ss = SessionState.start(new SessionState(base));
+        LineageExecuteWithHookContext hook = new LineageExecuteWithHookContext();
+        int batchEdges = base.getInt("hive.lineage.backfill.batch.edges", 10000);
+        List<Edge> batch = Lists.newArrayList();
+        // scripts with edges in the batch, reported when the batch can not be stored
+        Set<String> batchScripts = Sets.newLinkedHashSet();
+        try {
+            Path file;
+            while (Objects.nonNull(file = files.poll())) {
+                String script = root.relativize(file).toString();
+                // each script starts from the driver configuration, like a fresh cli session
+                HiveConf conf = new HiveConf(base);
+                conf.set("hive.sql.id", script);
+                ss.setConf(conf);
+                ss.setCurrentDatabase("default");
+                scripts.incrementAndGet();
+                boolean failed = false;
+                List<String> cmds;
+                try {
+                    cmds = splitStatements(new String(Files.readAllBytes(file), StandardCharsets.UTF_8));
+                } catch (IOException ex) {
+                    report(failures, script, 0, ex.toString());
+                    failedScripts.incrementAndGet();
+                    continue;
+                }
+                for (int i = 0; i < cmds.size(); i++) {
+                    try {
+                        List<Edge> found = compile(hook, ss, conf, cmds.get(i));
+                        batch.addAll(found);
+                        edges.addAndGet(found.size());
+                        if (!found.isEmpty()) batchScripts.add(script);
+                    } catch (Exception ex) {
+                        failed = true;
+                        report(failures, script, i + 1, ex.getMessage());
+                    }
+                }
+                if (failed) failedScripts.incrementAndGet();
+                if (batch.size() >= batchEdges) {
+                    flush(base, batch, batchScripts, failures);
+                }
+            }
+            flush(base, batch, batchScripts, failures);
+        } finally {
+            try {
+                ss.close();
+            } catch (IOException ex) {
+                LOG.warn("close session error", ex);
+            }
+        }
+    }
+
+    private List<Edge> compile(LineageExecuteWithHookContext hook, SessionState ss, HiveConf conf, String cmd) throws Exception {
+        String lower = StringUtils.lowerCase(cmd);
+        if (StringUtils.startsWithAny(lower, "add ", "delete ", "list ", "dfs ", "reset", "!")) {
+            return Lists.newArrayList();
+        }
+        if (StringUtils.startsWith(lower, "use ")) {
+            // later statements resolve unqualified tables against it, compiling use does not switch
+            ss.setCurrentDatabase(StringUtils.strip(StringUtils.trim(cmd.substring(4)), "`"));
+            return Lists.newArrayList();
+        }
+        if (StringUtils.startsWith(lower, "set ")) {
+            String kv = StringUtils.trim(cmd.substring(4));
+            int eq = kv.indexOf('=');
+            if (eq > 0) {
+                conf.set(StringUtils.trim(kv.substring(0, eq)), StringUtils.trim(kv.substring(eq + 1)));
+            }
+            return Lists.newArrayList();
+        }
+        statements.incrementAndGet();
+        ss.getLineageState().clear();
+        Driver driver = new Driver(conf);
+        try {
+            int ret = driver.compile(cmd);
+            if (ret != 0) {
+                throw new Exception("compile failed with code " + ret + ": " + driver.getErrorMsg());
+            }
+            QueryPlan plan = driver.getPlan();
+            if (!LineageExecuteWithHookContext.OPERATION_NAMES.contains(plan.getOperationName()) || plan.isExplain()) {
+                return Lists.newArrayList();
+            }
+            return hook.getEdges(plan, ss.getLineageState().getIndex(), conf);
+        } finally {
+            driver.close();
+            driver.destroy();
+        }
+    }
+
+    private void flush(Configuration conf, List<Edge> batch, Set<String> batchScripts, PrintWriter failures) {
+        if (batch.isEmpty()) return;
+        if (!LineageEdgeStore.storeAll(conf, Lists.newArrayList(batch))) {
+            LOG.error("store lineage batch error,edges:" + batch.size());
+            failedBatches.incrementAndGet();
+            failedEdges.addAndGet(batch.size());
+            for (String script : batchScripts) {
+                report(failures, script, 0, "store lineage batch of " + batch.size() + " edges failed");
+            }
+        }
+        batch.clear();
+        batchScripts.clear();
+    }
+
+    private static void report(PrintWriter failures, String script, int statement, String error) {
+        String message = StringUtils.replaceChars(StringUtils.defaultString(error), "\t\r\n", "   ");
+        synchronized (failures) {
+            failures.println(script + "\t" + statement + "\t" + message);
+            failures.flush();
+        }
+    }
+
+    /**
+     * Split a script into statements on ';', ignoring ones inside quotes and "--" comments.
+     */
+    static List<String> splitStatements(String script) {
+        List<String> cmds = Lists.newArrayList();
+        StringBuilder cur = new StringBuilder();
+        char quote = 0;
+        for (int i = 0; i < script.length(); i++) {
+            char c = script.charAt(i);
+            if (quote != 0) {
+                cur.append(c);
+                if (c == '\\' && i + 1 < script.length()) {
+                    cur.append(script.charAt(++i));
+                } else if (c == quote) {
+                    quote = 0;
+                }
+            } else if (c == '\'' || c == '"' || c == '`') {
+                quote = c;
+                cur.append(c);
+            } else if (c == '-' && i + 1 < script.length() && script.charAt(i + 1) == '-') {
+                int eol = script.indexOf('\n', i);
+                i = eol < 0 ? script.length() : eol;
+                cur.append('\n');
+            } else if (c == ';') {
+                addStatement(cmds, cur);
+            } else {
+                cur.append(c);
+            }
+        }
+        addStatement(cmds, cur);
+        return cmds;
+    }
+
+    private static void addStatement(List<String> cmds, StringBuilder cur) {
+        String cmd = StringUtils.trim(cur.toString());
+        if (StringUtils.isNotEmpty(cmd)) {
+            cmds.add(cmd);
+        }
+        cur.setLength(0);
+    }
+}
@@ -0,0 +1,60 @@
+package org.github.luikia.hive.lineage;
+
+import com.google.common.collect.Maps;
+import org.apache.hadoop.conf.Configuration;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Edges of one query together with the hive.lineage.* settings needed to
+ * find its stores, for delivery outside of the query thread.
+ */
+class LineageBatch {
+    private Map<String, String> conf;
+    private List<Edge> edges;
+
+    static LineageBatch of(Configuration conf, List<Edge> edges) {
+        return new LineageBatch(conf.getValByRegex(LineageEdgeStoreRegistry.LINEAGE_CONF_REGEX), edges);
+    }
+
+    LineageBatch(Map<String, String> conf, List<Edge> edges) {
+        this.conf = conf;
+        this.edges = edges;
+    }
+
+    Map<String, String> getConf() {
+        return conf;
+    }
+
+    List<Edge> getEdges() {
+        return edges;
+    }
+
+    Configuration toConf() {
+        Configuration c = new Configuration(false);
+        conf.forEach(c::set);
+        return c;
+    }
+
+    void write(DataOutput out) throws IOException {
+        out.writeInt(conf.size());
+        for (Map.Entry<String, String> e : conf.entrySet()) {
+            EdgeCodec.writeString(out, e.getKey());
+            EdgeCodec.writeString(out, e.getValue());
+        }
+        EdgeCodec.write(out, edges);
+    }
+
+    static LineageBatch read(DataInput in) throws IOException {
+        int size = in.readInt();
+        Map<String, String> conf = Maps.newHashMapWithExpectedSize(size);
+        for (int i = 0; i < size; i++) {
+            conf.put(EdgeCodec.readString(in), EdgeCodec.readString(in));
+        }
+        return new LineageBatch(conf, EdgeCodec.read(in));
+    }
+}
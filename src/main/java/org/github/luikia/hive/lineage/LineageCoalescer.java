@@ -0,0 +1,94 @@
+package org.github.luikia.hive.lineage;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
+
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+
+/**
+ * Merges the batches of many queries into one deduplicated batch per store configuration.
+ * Edges with the same type, expression, hql and sources become one edge holding the union of
+ * their targets, so a query repeated within the window costs nothing extra downstream.
+ * Vertices are already shared through the {@link Vertex} pool, only edges need merging here.
+ */
+final class LineageCoalescer {
+
+    // batches with equal hive.lineage.* settings go to the same stores
+    private final Map<Map<String, String>, Map<Key, Edge>> groups = Maps.newLinkedHashMap();
+    private int received = 0;
+    private int size = 0;
+
+    void add(LineageBatch batch) {
+        Map<Key, Edge> edges = groups.computeIfAbsent(batch.getConf(), k -> Maps.newLinkedHashMap());
+        for (Edge edge : batch.getEdges()) {
+            received++;
+            Key key = new Key(edge);
+            Edge merged = edges.get(key);
+            if (Objects.isNull(merged)) {
+                Set<Vertex> targets = Sets.newLinkedHashSet(edge.getTargets());
+                edges.put(key, Edge.of(edge.getSources(), targets, edge.getExpr(), edge.getHql(), edge.getType()));
+                size++;
+            } else {
+                merged.getTargets().addAll(edge.getTargets());
+            }
+        }
+    }
+
+    /**
+     * Edges received so far.
+     */
+    int getReceived() {
+        return received;
+    }
+
+    /**
+     * Distinct edges left after merging.
+     */
+    int size() {
+        return size;
+    }
+
+    List<LineageBatch> getBatches() {
+        List<LineageBatch> batches = Lists.newArrayListWithCapacity(groups.size());
+        groups.forEach((conf, edges) -> batches.add(new LineageBatch(conf, Lists.newArrayList(edges.values()))));
+        return batches;
+    }
+
+    private static final class Key {
+        private final Edge.Type type;
+        private final String expr;
+        private final String hql;
+        private final Set<Vertex> sources;
+        private final int hash;
+
+        private Key(Edge edge) {
+            this.type = edge.getType();
+            this.expr = edge.getExpr();
+            this.hql = edge.getHql();
+            this.sources = edge.getSources();
+            this.hash = Objects.hash(type, expr, hql, sources);
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (this == obj) {
+                return true;
+            }
+            if (!(obj instanceof Key)) {
+                return false;
+            }
+            Key key = (Key) obj;
+            return hash == key.hash && type == key.type && expr.equals(key.expr)
+                    && hql.equals(key.hql) && sources.equals(key.sources);
+        }
+    }
+}
@@ -0,0 +1,36 @@
+package org.github.luikia.hive.lineage;
+
+/**
+ * Streaming receiver of the edges of one query.
+ * Edges are accepted while the final select operators are walked and flushed in batches,
+ * so neither side has to hold the whole query in memory.
+ * <p>
+ * Calls come in the order begin, (accept* flush)*, then commit, or abort when the query is given up.
+ * Edges of a query may arrive in several batches and an edge may be split over batches.
+ */
+public interface LineageEdgeSink {
+
+    /**
+     * A new query starts.
+     *
+     * @param hqlId hive.sql.id of the query, may be null
+     */
+    void begin(String hqlId);
+
+    void accept(Edge edge);
+
+    /**
+     * Write out the edges accepted since the last flush.
+     */
+    void flush();
+
+    /**
+     * All edges of the query were flushed.
+     */
+    void commit();
+
+    /**
+     * The query is given up, edges already flushed may stay written.
+     */
+    void abort();
+}
@@ -0,0 +1,149 @@
+package org.github.luikia.hive.lineage;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import org.apache.hadoop.conf.Configuration;
+
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+/**
+ * Sinks used by the hook when hive.lineage.stream.enable is on.
+ */
+final class LineageEdgeSinks {
+
+    private LineageEdgeSinks() {}
+
+    static boolean isStreaming(Configuration conf) {
+        return conf.getBoolean("hive.lineage.stream.enable", false);
+    }
+
+    static int getBatchEdges(Configuration conf) {
+        return Math.max(1, conf.getInt("hive.lineage.stream.batch.edges", 1000));
+    }
+
+    /**
+     * Hand every flushed batch to the target, e.g. the spool or the async dispatcher.
+     */
+    static LineageEdgeSink batching(Consumer<List<Edge>> target) {
+        return new BatchingSink(target);
+    }
+
+    /**
+     * Write every flushed batch to the sink of each configured store, through the same
+     * fan-out, limits and breakers as {@link LineageEdgeStore#storeAll}. All batches of the query
+     * share hive.lineage.stream.timeout.ms, a slow store does not get a full store timeout per batch.
+     */
+    static LineageEdgeSink stores(Configuration conf, long deadlineNanos) {
+        return new StoreSink(conf, deadlineNanos);
+    }
+
+    private static final class BatchingSink implements LineageEdgeSink {
+        private final Consumer<List<Edge>> target;
+        private List<Edge> buffer = Lists.newArrayList();
+
+        BatchingSink(Consumer<List<Edge>> target) {
+            this.target = target;
+        }
+
+        @Override
+        public void begin(String hqlId) {}
+
+        @Override
+        public void accept(Edge edge) {
+            buffer.add(edge);
+        }
+
+        @Override
+        public void flush() {
+            if (buffer.isEmpty()) return;
+            List<Edge> batch = buffer;
+            buffer = Lists.newArrayList();
+            target.accept(batch);
+        }
+
+        @Override
+        public void commit() {
+            flush();
+        }
+
+        @Override
+        public void abort() {
+            buffer.clear();
+        }
+    }
+
+    /**
+     * Buffers one batch for all stores. Each store sink is opened on the first batch and
+     * only used by one fan-out task at a time, a store still busy with the previous batch
+     * holds up its own next batch and not the query.
+     */
+    private static final class StoreSink implements LineageEdgeSink {
+        private final Configuration conf;
+        private final long deadlineNanos;
+        private final Map<LineageEdgeStore, LineageEdgeSink> sinks = Maps.newConcurrentMap();
+        private String hqlId;
+        private List<Edge> buffer = Lists.newArrayList();
+
+        StoreSink(Configuration conf, long deadlineNanos) {
+            this.conf = conf;
+            long timeoutMs = conf.getLong("hive.lineage.stream.timeout.ms", conf.getLong("hive.lineage.store.timeout.ms", 30000L));
+            long cap = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMs);
+            this.deadlineNanos = deadlineNanos != LineageStoreFanout.NO_DEADLINE && deadlineNanos - cap < 0 ? deadlineNanos : cap;
+        }
+
+        @Override
+        public void begin(String hqlId) {
+            this.hqlId = hqlId;
+        }
+
+        @Override
+        public void accept(Edge edge) {
+            buffer.add(edge);
+        }
+
+        @Override
+        public void flush() {
+            write(false);
+        }
+
+        @Override
+        public void commit() {
+            write(true);
+        }
+
+        @Override
+        public void abort() {
+            buffer.clear();
+            if (sinks.isEmpty()) return;
+            LineageStoreFanout.run(conf, "abort", store -> {
+                LineageEdgeSink sink = sinks.get(store);
+                if (Objects.isNull(sink)) return;
+                synchronized (sink) {
+                    sink.abort();
+                }
+            }, deadlineNanos, null);
+        }
+
+        private void write(boolean last) {
+            if (buffer.isEmpty() && (!last || sinks.isEmpty())) return;
+            List<Edge> batch = buffer;
+            buffer = Lists.newArrayList();
+            LineageEdgeStore.write(conf, batch, deadlineNanos, store -> {
+                LineageEdgeSink sink = sinks.computeIfAbsent(store, s -> {
+                    LineageEdgeSink opened = s.openSink();
+                    opened.begin(hqlId);
+                    return opened;
+                });
+                synchronized (sink) {
+                    batch.forEach(sink::accept);
+                    sink.flush();
+                    if (last) sink.commit();
+                }
+            });
+        }
+    }
+}
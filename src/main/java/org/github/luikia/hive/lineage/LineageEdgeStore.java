@@ -1,46 +1,186 @@
 package org.github.luikia.hive.lineage;
 
-import org.apache.commons.lang3.ClassUtils;
-import org.apache.commons.lang3.StringUtils;
-import org.apache.commons.lang3.reflect.ConstructorUtils;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
+import com.google.gson.Gson;
 import org.apache.hadoop.conf.Configuration;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.util.Collection;
 import java.util.Collections;
 import java.util.List;
+import java.util.Map;
 import java.util.Objects;
-import java.util.stream.IntStream;
+import java.util.Set;
+import java.util.function.Consumer;
 import java.util.stream.Stream;
 
 public abstract class LineageEdgeStore {
     private static final Logger LOG = LoggerFactory.getLogger(LineageEdgeStore.class);
 
+    /**
+     * Edges a store did not get because its breaker was open, one json line per store and write.
+     */
+    private static final Logger FALLBACK = LoggerFactory.getLogger("org.github.luikia.hive.lineage.fallback");
+
+    private static final Gson g = new Gson();
+
+    /**
+     * Timeout, concurrency limit and failure counters, set by the registry.
+     */
+    LineageStoreGuard guard;
+
     public LineageEdgeStore() {}
 
     public abstract void init(Configuration conf);
 
     public abstract void store(List<Edge> edges);
 
+    /**
+     * Prefixes of the hive.lineage.* keys {@link #init(Configuration)} reads. The registry shares stores
+     * between configurations that agree on these keys and on hive.lineage.store.*. The default is every
+     * key except the per-query settings of the hook.
+     */
+    public Collection<String> getConfPrefixes() {
+        return Collections.singletonList(LineageEdgeStoreRegistry.ALL_KEYS);
+    }
+
+    /**
+     * Release connections and threads held by this store.
+     */
+    public void close() {}
+
+    /**
+     * Record that these hive.sql.id ran again with lineage already stored.
+     * Called instead of {@link #store(List)} when fingerprinting is on, the default does nothing.
+     */
+    public void heartbeat(Collection<String> hqlIds) {}
+
+    /**
+     * Streaming counterpart of {@link #store(List)}, opened once per query when hive.lineage.stream.enable is on.
+     * The default buffers the accepted edges and hands them to {@link #store(List)} on every flush,
+     * stores that can write edge by edge may return their own sink.
+     */
+    public LineageEdgeSink openSink() {
+        return new ListSink(this);
+    }
 
     public static Stream<LineageEdgeStore> getEdgeStores(final Configuration conf) {
-        final String storeclass = conf.getTrimmed("hive.lineage.store.classes");
-        if (StringUtils.isEmpty(storeclass)) return Collections.<LineageEdgeStore>emptyList().stream();
-        String[] classes = StringUtils.split(storeclass, ",");
-        return IntStream.range(0, classes.length).mapToObj(i -> {
-            LineageEdgeStore store;
+        return LineageEdgeStoreRegistry.get(conf).stream();
+    }
+
+    /**
+     * Store edges into every configured store.
+     * A failing store is logged and does not prevent the others from storing.
+     *
+     * @return true if all stores succeeded
+     */
+    public static boolean storeAll(final Configuration conf, final List<Edge> edges) {
+        return storeAll(conf, edges, LineageStoreFanout.NO_DEADLINE);
+    }
+
+    /**
+     * Same as {@link #storeAll(Configuration, List)}, but stop waiting for the stores at the deadline.
+     *
+     * @param deadlineNanos System.nanoTime() to give up at
+     */
+    public static boolean storeAll(final Configuration conf, final List<Edge> edges, final long deadlineNanos) {
+        if (!LineageFingerprints.isEnabled(conf)) {
+            return write(conf, edges, deadlineNanos);
+        }
+        LineageFingerprints fingerprints = LineageFingerprints.get(conf);
+        Map<String, List<Edge>> statements = Maps.newLinkedHashMap();
+        List<Edge> changed = Lists.newArrayList();
+        String storeSet = LineageFingerprints.storeSet(conf);
+        for (Edge edge : edges) {
+            String key = LineageFingerprints.key(storeSet, edge);
+            if (Objects.isNull(key)) changed.add(edge);
+            else statements.computeIfAbsent(key, k -> Lists.newArrayList()).add(edge);
+        }
+        Map<String, Long> pending = Maps.newLinkedHashMap();
+        Set<String> unchanged = Sets.newLinkedHashSet();
+        statements.forEach((key, stmtEdges) -> {
+            long fingerprint = LineageFingerprints.fingerprint(stmtEdges);
+            if (fingerprints.unchanged(key, fingerprint)) {
+                unchanged.add(stmtEdges.get(0).getHql());
+            } else {
+                changed.addAll(stmtEdges);
+                pending.put(key, fingerprint);
+            }
+        });
+        boolean success = changed.isEmpty() || write(conf, changed, deadlineNanos);
+        if (success) {
+            pending.forEach(fingerprints::record);
+        }
+        if (!unchanged.isEmpty()) {
+            success &= heartbeatAll(conf, unchanged, deadlineNanos);
+        }
+        return success;
+    }
+
+    private static boolean heartbeatAll(final Configuration conf, final Collection<String> hqlIds, final long deadlineNanos) {
+        return LineageStoreFanout.run(conf, "heartbeat", s -> s.heartbeat(hqlIds), deadlineNanos, null);
+    }
+
+    private static boolean write(final Configuration conf, final List<Edge> edges, final long deadlineNanos) {
+        return write(conf, edges, deadlineNanos, s -> s.store(edges));
+    }
+
+    /**
+     * Run a write of these edges against every store, the edges are logged for a store whose breaker is open.
+     */
+    static boolean write(final Configuration conf, final List<Edge> edges, final long deadlineNanos,
+                         final Consumer<LineageEdgeStore> call) {
+        // spooled edges are replayed once the breaker closes again, only log them otherwise
+        boolean spooled = LineageSpool.isEnabled(conf);
+        return LineageStoreFanout.run(conf, "store", s -> {
+            long start = System.nanoTime();
             try {
-                store = (LineageEdgeStore) ConstructorUtils.invokeConstructor(
-                        ClassUtils.getClass(StringUtils.trim(classes[i])));
-                store.init(conf);
-            } catch (Exception ex) {
-                store = null;
-                LOG.error("construct store error", ex);
+                call.accept(s);
+            } finally {
+                LineageMetrics.get().store(start);
             }
-            return store;
+        }, deadlineNanos, spooled ? null : s -> FALLBACK.info(s.getClass().getName() + "\t" + g.toJson(edges)));
+    }
+
+    /**
+     * Adapter giving a {@link List} based store the streaming interface.
+     */
+    private static final class ListSink implements LineageEdgeSink {
+        private final LineageEdgeStore store;
+        private List<Edge> buffer = Lists.newArrayList();
+
+        private ListSink(LineageEdgeStore store) {
+            this.store = store;
+        }
+
+        @Override
+        public void begin(String hqlId) {}
+
+        @Override
+        public void accept(Edge edge) {
+            buffer.add(edge);
+        }
+
+        @Override
+        public void flush() {
+            if (buffer.isEmpty()) return;
+            List<Edge> batch = buffer;
+            buffer = Lists.newArrayList();
+            store.store(batch);
+        }
 
-        }).filter(Objects::nonNull);
+        @Override
+        public void commit() {
+            flush();
+        }
 
+        @Override
+        public void abort() {
+            buffer.clear();
+        }
     }
 
 }
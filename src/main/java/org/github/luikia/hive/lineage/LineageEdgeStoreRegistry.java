@@ -0,0 +1,174 @@
+package org.github.luikia.hive.lineage;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.RemovalListener;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Sets;
+import org.apache.commons.lang3.ClassUtils;
+import org.apache.commons.lang3.StringUtils;
+import org.apache.commons.lang3.reflect.ConstructorUtils;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.util.ShutdownHookManager;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+
+/**
+ * Process-wide cache of initialized stores.
+ * Stores are keyed by the hive.lineage.* settings the configured store classes read,
+ * see {@link LineageEdgeStore#getConfPrefixes()}, so a changed store class, url or credential
+ * produces new instances while per-query settings of the hook do not. At most
+ * MAX_STORE_SETS store sets are kept, the least recently used one is closed when a new one is built.
+ */
+public final class LineageEdgeStoreRegistry {
+    private static final Logger LOG = LoggerFactory.getLogger(LineageEdgeStoreRegistry.class);
+
+    static final String LINEAGE_CONF_REGEX = "^hive\\.lineage\\..*";
+
+    /**
+     * Prefix matching every key, the default of {@link LineageEdgeStore#getConfPrefixes()}.
+     */
+    static final String ALL_KEYS = "hive.lineage.";
+
+    /**
+     * Store classes, timeouts and breakers, part of every key.
+     */
+    private static final String STORE_KEYS = "hive.lineage.store.";
+
+    /**
+     * Per-query and per-process settings of the hook, left out of the key of stores matching {@link #ALL_KEYS}.
+     */
+    private static final String[] IGNORED_KEYS = {"hive.lineage.enable", "hive.lineage.runsql.enable",
+            "hive.lineage.stream.", "hive.lineage.granularity", "hive.lineage.query.budget.ms",
+            "hive.lineage.fingerprint.", "hive.lineage.async.", "hive.lineage.spool.",
+            "hive.lineage.backfill.", "hive.lineage.bulk."};
+
+    private static final int MAX_STORE_SETS = 16;
+
+    private static final int SHUTDOWN_HOOK_PRIORITY = 10;
+
+    private static final Cache<Map<String, String>, List<LineageEdgeStore>> STORES = CacheBuilder.newBuilder()
+            .maximumSize(MAX_STORE_SETS)
+            .removalListener((RemovalListener<Map<String, String>, List<LineageEdgeStore>>) n -> close(n.getValue()))
+            .build();
+
+    /**
+     * Store class name -> prefixes of the keys it reads.
+     */
+    private static final ConcurrentMap<String, Collection<String>> PREFIXES = new ConcurrentHashMap<>();
+
+    static {
+        ShutdownHookManager.get().addShutdownHook(LineageEdgeStoreRegistry::close, SHUTDOWN_HOOK_PRIORITY);
+    }
+
+    private LineageEdgeStoreRegistry() {}
+
+    public static List<LineageEdgeStore> get(final Configuration conf) {
+        Map<String, String> key = key(conf);
+        List<LineageEdgeStore> stores = STORES.getIfPresent(key);
+        if (Objects.isNull(stores)) {
+            try {
+                stores = STORES.get(key, () -> create(conf));
+            } catch (ExecutionException ex) {
+                throw new LineageStoreException("create stores error", ex.getCause());
+            }
+        }
+        return stores;
+    }
+
+    /**
+     * The settings the configured stores are built from.
+     */
+    static Map<String, String> key(final Configuration conf) {
+        Set<String> prefixes = Sets.newHashSet(STORE_KEYS);
+        String storeclass = conf.getTrimmed("hive.lineage.store.classes");
+        if (StringUtils.isNotEmpty(storeclass)) {
+            for (String cls : StringUtils.split(storeclass, ",")) {
+                prefixes.addAll(PREFIXES.computeIfAbsent(StringUtils.trim(cls), LineageEdgeStoreRegistry::confPrefixes));
+            }
+        }
+        Map<String, String> key = new TreeMap<>();
+        for (Map.Entry<String, String> e : conf.getValByRegex(LINEAGE_CONF_REGEX).entrySet()) {
+            if (included(e.getKey(), prefixes)) {
+                key.put(e.getKey(), e.getValue());
+            }
+        }
+        return key;
+    }
+
+    private static boolean included(String name, Set<String> prefixes) {
+        for (String prefix : prefixes) {
+            if (!name.startsWith(prefix)) continue;
+            if (!ALL_KEYS.equals(prefix) || Arrays.stream(IGNORED_KEYS).noneMatch(name::startsWith)) return true;
+        }
+        return false;
+    }
+
+    private static Collection<String> confPrefixes(String cls) {
+        try {
+            LineageEdgeStore store = (LineageEdgeStore) ConstructorUtils.invokeConstructor(ClassUtils.getClass(cls));
+            return ImmutableList.copyOf(store.getConfPrefixes());
+        } catch (Exception ex) {
+            // create() logs the error, key on everything meanwhile
+            return ImmutableList.of(ALL_KEYS);
+        }
+    }
+
+    /**
+     * Every store currently cached, whatever configuration it was built from.
+     */
+    static List<LineageEdgeStore> all() {
+        List<LineageEdgeStore> all = Lists.newArrayList();
+        STORES.asMap().values().forEach(all::addAll);
+        return all;
+    }
+
+    /**
+     * Close every cached store and forget them.
+     */
+    public static void close() {
+        STORES.invalidateAll();
+    }
+
+    /**
+     * Close a store set that was evicted or invalidated, a write still running on it fails and falls back.
+     */
+    private static void close(List<LineageEdgeStore> stores) {
+        for (LineageEdgeStore store : stores) {
+            try {
+                store.close();
+            } catch (Exception ex) {
+                LOG.error("close store error,store:" + store.getClass().getName(), ex);
+            }
+        }
+    }
+    private static List<LineageEdgeStore> create(final Configuration conf) {
+        final String storeclass = conf.getTrimmed("hive.lineage.store.classes");
+        if (StringUtils.isEmpty(storeclass)) return ImmutableList.of();
+        ImmutableList.Builder<LineageEdgeStore> stores = ImmutableList.builder();
+        for (String cls : StringUtils.split(storeclass, ",")) {
+            try {
+                LineageEdgeStore store = (LineageEdgeStore) ConstructorUtils.invokeConstructor(
+                        ClassUtils.getClass(StringUtils.trim(cls)));
+                store.init(conf);
+                store.guard = new LineageStoreGuard(store, conf);
+                stores.add(store);
+            } catch (Exception ex) {
+                LOG.error("construct store error", ex);
+            }
+        }
+        return stores.build();
+    }
+}
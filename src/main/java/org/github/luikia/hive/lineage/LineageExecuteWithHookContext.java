@@ -4,11 +4,11 @@ import com.google.common.collect.Lists;
 import com.google.common.collect.Maps;
 import com.google.common.collect.Sets;
 import org.apache.commons.collections.CollectionUtils;
-import org.apache.commons.collections.SetUtils;
 import org.apache.commons.lang.StringUtils;
 import org.apache.hadoop.hive.common.ObjectPair;
 import org.apache.hadoop.hive.conf.HiveConf;
 import org.apache.hadoop.hive.metastore.api.FieldSchema;
+import org.apache.hadoop.hive.metastore.api.Schema;
 import org.apache.hadoop.hive.ql.QueryPlan;
 import org.apache.hadoop.hive.ql.exec.ColumnInfo;
 import org.apache.hadoop.hive.ql.exec.SelectOperator;
@@ -19,11 +19,14 @@ import org.apache.hadoop.hive.ql.optimizer.lineage.LineageCtx;
 import org.apache.hadoop.hive.ql.plan.HiveOperation;
 import org.apache.hadoop.hive.ql.session.SessionState;
 
+import java.io.IOException;
+import java.io.UncheckedIOException;
 import java.util.*;
+import java.util.concurrent.TimeUnit;
 
 public class LineageExecuteWithHookContext implements ExecuteWithHookContext {
 
-    private static final HashSet<String> OPERATION_NAMES = Sets.newHashSet(
+    static final HashSet<String> OPERATION_NAMES = Sets.newHashSet(
             HiveOperation.QUERY.getOperationName(),
             HiveOperation.CREATETABLE_AS_SELECT.getOperationName(),
             HiveOperation.ALTERVIEW_AS.getOperationName(),
@@ -42,16 +45,17 @@ public class LineageExecuteWithHookContext implements ExecuteWithHookContext {
         if (Objects.nonNull(ss) && Objects.nonNull(index)
                 && OPERATION_NAMES.contains(plan.getOperationName())
                 && !plan.isExplain()) {
+            long start = System.nanoTime();
+            boolean failed = false;
             try {
-                List<Edge> edges = getEdges(plan, index, conf);
-                if (CollectionUtils.isEmpty(edges)) {
-                    return;
-                }
-                LineageEdgeStore.getEdgeStores(conf).forEach(s -> s.store(edges));
+                process(plan.getResultSchema(), plan.getOutputs(), index, conf, start);
             } catch (Throwable t) {
+                failed = true;
                 // Don't fail the query just because of any lineage issue.
                 log("Failed to log lineage graph, query is not affected\n"
                         + org.apache.hadoop.util.StringUtils.stringifyException(t));
+            } finally {
+                LineageMetrics.get().hook(start, failed);
             }
         }
         if (!conf.getBoolean("hive.lineage.runsql.enable", true)) {
@@ -60,6 +64,67 @@ public class LineageExecuteWithHookContext implements ExecuteWithHookContext {
         }
     }
 
+    /**
+     * Extract the lineage of a query and hand it to the spool, the dispatcher or the stores.
+     */
+    void process(Schema resultSchema, Collection<WriteEntity> outputs, LineageCtx.Index index, HiveConf conf,
+                 long start) throws IOException {
+        if (LineageEdgeSinks.isStreaming(conf)) {
+            stream(resultSchema, outputs, index, conf, start);
+            return;
+        }
+        List<Edge> edges = getEdges(resultSchema, outputs, index, conf);
+        if (CollectionUtils.isEmpty(edges)) {
+            return;
+        }
+        if (LineageSpool.isEnabled(conf)) {
+            LineageSpool.get(conf).append(conf, edges);
+        } else if (AsyncLineageDispatcher.isEnabled(conf)) {
+            AsyncLineageDispatcher.get(conf).submit(conf, edges);
+        } else {
+            LineageEdgeStore.storeAll(conf, edges, getDeadline(conf, start));
+        }
+    }
+
+    private long getDeadline(HiveConf conf, long start) {
+        long budgetMs = conf.getLong("hive.lineage.query.budget.ms", 0L);
+        return budgetMs > 0 ? start + TimeUnit.MILLISECONDS.toNanos(budgetMs) : LineageStoreFanout.NO_DEADLINE;
+    }
+
+    /**
+     * Hand the edges to the spool, the dispatcher or the stores batch by batch while they are found,
+     * instead of collecting the whole query first.
+     */
+    private void stream(Schema resultSchema, Collection<WriteEntity> outputs, LineageCtx.Index index, HiveConf conf,
+                        long start) {
+        LineageEdgeSink sink;
+        if (LineageSpool.isEnabled(conf)) {
+            LineageSpool spool = LineageSpool.get(conf);
+            sink = LineageEdgeSinks.batching(batch -> {
+                try {
+                    spool.append(conf, batch);
+                } catch (IOException ex) {
+                    throw new UncheckedIOException(ex);
+                }
+            });
+        } else if (AsyncLineageDispatcher.isEnabled(conf)) {
+            AsyncLineageDispatcher dispatcher = AsyncLineageDispatcher.get(conf);
+            sink = LineageEdgeSinks.batching(batch -> dispatcher.submit(conf, batch));
+        } else {
+            sink = LineageEdgeSinks.stores(conf, getDeadline(conf, start));
+        }
+        sink.begin(conf.getTrimmed("hive.sql.id"));
+        boolean committed = false;
+        try {
+            if (emitEdges(resultSchema, outputs, index, conf, sink, LineageEdgeSinks.getBatchEdges(conf))) {
+                sink.commit();
+                committed = true;
+            }
+        } finally {
+            if (!committed) sink.abort();
+        }
+    }
+
     /**
      * Logger an error to console if available.
      */
@@ -74,15 +139,43 @@ public class LineageExecuteWithHookContext implements ExecuteWithHookContext {
      * Based on the final select operator, find out all the target columns.
      * For each target column, find out its sources based on the dependency index.
      */
-    private List<Edge> getEdges(QueryPlan plan, LineageCtx.Index index, HiveConf conf) {
+    List<Edge> getEdges(QueryPlan plan, LineageCtx.Index index, HiveConf conf) {
+        return getEdges(plan.getResultSchema(), plan.getOutputs(), index, conf);
+    }
+
+    /**
+     * Same as {@link #getEdges(QueryPlan, LineageCtx.Index, HiveConf)} with only the parts
+     * of the plan it reads, so it can run without a compiled query.
+     */
+    List<Edge> getEdges(Schema resultSchema, Collection<WriteEntity> outputs, LineageCtx.Index index, HiveConf conf) {
+        List<Edge> result = Lists.newArrayList();
+        if (!emitEdges(resultSchema, outputs, index, conf, LineageEdgeSinks.batching(result::addAll), 0)) {
+            return Collections.emptyList();
+        }
+        return result;
+    }
+
+    /**
+     * Walk the final select operators and hand their edges to the sink.
+     * With a positive batch size the edges of each operator are flushed once it is done,
+     * and earlier whenever batchEdges edges are pending, so memory does not grow with the query width.
+     * Otherwise everything is flushed once at the end and edges are merged across operators.
+     *
+     * @return false if a target table can not be found, nothing should be kept for the query
+     */
+    boolean emitEdges(Schema resultSchema, Collection<WriteEntity> outputs, LineageCtx.Index index, HiveConf conf,
+                      LineageEdgeSink sink, int batchEdges) {
+        long start = System.nanoTime();
         LinkedHashMap<String, ObjectPair<SelectOperator,
                 Table>> finalSelOps = index.getFinalSelectOps();
         Map<String, Vertex> vertexCache = Maps.newLinkedHashMap();
         String hqlId = conf.getTrimmed("hive.sql.id");
-        List<Edge> edges = Lists.newArrayList();
+        LineageGranularity granularity = LineageGranularity.of(conf);
+        EdgeIndex edges = new EdgeIndex();
+        int emitted = 0;
         for (ObjectPair<SelectOperator,
                 org.apache.hadoop.hive.ql.metadata.Table> pair : finalSelOps.values()) {
-            List<FieldSchema> fieldSchemas = plan.getResultSchema().getFieldSchemas();
+            List<FieldSchema> fieldSchemas = resultSchema.getFieldSchemas();
             SelectOperator finalSelOp = pair.getFirst();
             org.apache.hadoop.hive.ql.metadata.Table t = pair.getSecond();
             String destTableName = null;
@@ -92,7 +185,7 @@ public class LineageExecuteWithHookContext implements ExecuteWithHookContext {
                 fieldSchemas = t.getCols();
             } else {
                 // Based on the plan outputs, find out the target table name and column names.
-                for (WriteEntity output : plan.getOutputs()) {
+                for (WriteEntity output : outputs) {
                     Entity.Type entityType = output.getType();
                     if (entityType == Entity.Type.TABLE
                             || entityType == Entity.Type.PARTITION) {
@@ -110,7 +203,7 @@ public class LineageExecuteWithHookContext implements ExecuteWithHookContext {
             List<LineageInfo.Dependency> dependencies = Objects.nonNull(colMap) ? Lists.newArrayList(colMap.values()) : null;
             int fields = fieldSchemas.size();
             if (Objects.isNull(t)) {
-                return Collections.emptyList();
+                return false;
             }
             if (Objects.nonNull(colMap) && fields < colMap.size()) {
                 // Dynamic partition keys should be added to field schemas.
@@ -134,55 +227,79 @@ public class LineageExecuteWithHookContext implements ExecuteWithHookContext {
             } else {
                 // Go through each target column, generate the lineage edges.
                 Set<Vertex> targets = Sets.newLinkedHashSet();
+                boolean targetColumns = granularity.keepsColumns(t.getDbName(), t.getTableName());
                 for (int i = 0; i < fields; i++) {
-                    Vertex target = getOrCreateVertex(vertexCache,
-                            getTargetFieldName(i, destTableName, colNames, fieldSchemas),
-                            Vertex.Type.COLUMN, fieldSchemas.get(i).getComment());
+                    Vertex target = targetColumns
+                            ? getOrCreateVertex(vertexCache, getTargetFieldName(i, destTableName, colNames, fieldSchemas),
+                            Vertex.Type.COLUMN, fieldSchemas.get(i).getComment())
+                            : getOrCreateVertex(vertexCache, destTableName, Vertex.Type.TABLE, "");
                     targets.add(target);
                     LineageInfo.Dependency dep = dependencies.get(i);
-                    addEdge(vertexCache, edges, dep.getBaseCols(), target,
+                    addEdge(vertexCache, granularity, edges, dep.getBaseCols(), target,
                             dep.getExpr(), hqlId, Edge.Type.PROJECTION);
+                    if (batchEdges > 0 && edges.size() >= batchEdges) {
+                        emitted += emit(edges, sink);
+                    }
                 }
                 Set<LineageInfo.Predicate> conds = index.getPredicates(finalSelOp);
                 if (CollectionUtils.isNotEmpty(conds)) {
-                    conds.forEach(cond -> addEdge(vertexCache, edges, cond.getBaseCols(),
+                    conds.forEach(cond -> addEdge(vertexCache, granularity, edges, cond.getBaseCols(),
                             Sets.newLinkedHashSet(targets), cond.getExpr(), hqlId,
                             Edge.Type.PREDICATE));
                 }
             }
+            if (batchEdges > 0) {
+                emitted += emit(edges, sink);
+            }
         }
-        return edges;
+        emitted += emit(edges, sink);
+        LineageMetrics.get().getEdges(start, emitted, vertexCache.size());
+        return true;
     }
 
-    private void addEdge(Map<String, Vertex> vertexCache, List<Edge> edges,
+    private int emit(EdgeIndex edges, LineageEdgeSink sink) {
+        if (edges.size() == 0) return 0;
+        List<Edge> batch = edges.drain();
+        batch.forEach(sink::accept);
+        sink.flush();
+        return batch.size();
+    }
+
+    private void addEdge(Map<String, Vertex> vertexCache, LineageGranularity granularity, EdgeIndex edges,
                          Set<LineageInfo.BaseColumnInfo> srcCols, Vertex target, String expr, String hql, Edge.Type type) {
         Set<Vertex> targets = Sets.newLinkedHashSet();
         targets.add(target);
-        addEdge(vertexCache, edges, srcCols, targets, expr, hql, type);
+        addEdge(vertexCache, granularity, edges, srcCols, targets, expr, hql, type);
     }
 
     /**
      * Find an edge from all edges that has the same source vertices.
      * If found, add the more targets to this edge's target vertex list.
      * Otherwise, create a new edge and add to edge list.
+     * An edge between tables only drops the column expression and a missing hive.sql.id,
+     * so all of them with the same source tables merge into one edge.
      */
-    private void addEdge(Map<String, Vertex> vertexCache, List<Edge> edges,
+    private void addEdge(Map<String, Vertex> vertexCache, LineageGranularity granularity, EdgeIndex edges,
                          Set<LineageInfo.BaseColumnInfo> srcCols, Set<Vertex> targets, String expr, String hql, Edge.Type type) {
-        Set<Vertex> sources = createSourceVertices(vertexCache, srcCols);
-        Edge edge = findSimilarEdgeBySources(edges, sources, expr, hql, type);
-        if (Objects.isNull(edge)) {
-            edges.add(Edge.of(sources, targets, expr, hql, type));
-        } else {
-            edge.getTargets().addAll(targets);
+        Set<Vertex> sources = createSourceVertices(vertexCache, granularity, srcCols);
+        if (isTablesOnly(targets) && isTablesOnly(sources)) {
+            expr = StringUtils.EMPTY;
+            hql = StringUtils.defaultString(hql);
         }
+        edges.add(sources, targets, expr, hql, type);
+    }
+
+    private boolean isTablesOnly(Set<Vertex> vertices) {
+        return vertices.stream().allMatch(v -> v.getType() == Vertex.Type.TABLE);
     }
 
     /**
      * Convert a list of columns to a set of vertices.
      * Use cached vertices if possible.
+     * Columns of tables without column level lineage become their table.
      */
-    private Set<Vertex> createSourceVertices(
-            Map<String, Vertex> vertexCache, Collection<LineageInfo.BaseColumnInfo> baseCols) {
+    private Set<Vertex> createSourceVertices(Map<String, Vertex> vertexCache, LineageGranularity granularity,
+                                             Collection<LineageInfo.BaseColumnInfo> baseCols) {
         Set<Vertex> sources = Sets.newLinkedHashSet();
         if (CollectionUtils.isNotEmpty(baseCols)) {
             for (LineageInfo.BaseColumnInfo col : baseCols) {
@@ -196,7 +313,7 @@ public class LineageExecuteWithHookContext implements ExecuteWithHookContext {
                 FieldSchema fieldSchema = col.getColumn();
                 String label = tableName;
                 String comment = "";
-                if (Objects.nonNull(fieldSchema)) {
+                if (Objects.nonNull(fieldSchema) && granularity.keepsColumns(table.getDbName(), table.getTableName())) {
                     type = Vertex.Type.COLUMN;
                     label = tableName + "." + fieldSchema.getName();
                     comment = fieldSchema.getComment();
@@ -220,20 +337,6 @@ public class LineageExecuteWithHookContext implements ExecuteWithHookContext {
         return vertex;
     }
 
-    /**
-     * Find an edge that has the same type, expression, and sources.
-     */
-    private Edge findSimilarEdgeBySources(
-            List<Edge> edges, Set<Vertex> sources, String expr, String hql, Edge.Type type) {
-        for (Edge edge : edges) {
-            if (edge.getType() == type && StringUtils.equals(edge.getExpr(), expr)
-                    && SetUtils.isEqualSet(edge.getSources(), sources) && StringUtils.equals(edge.getHql(), hql)) {
-                return edge;
-            }
-        }
-        return null;
-    }
-
     /**
      * Generate normalized name for a given target column.
      */
@@ -0,0 +1,167 @@
+package org.github.luikia.hive.lineage;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.hash.Hasher;
+import com.google.common.hash.Hashing;
+import org.apache.commons.lang3.StringUtils;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.util.ShutdownHookManager;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.stream.Collectors;
+
+/**
+ * Last lineage fingerprint written per statement, so a query that runs again
+ * with the same lineage only sends a heartbeat to the stores.
+ * A statement is identified by the store set it goes to, its hive.sql.id and the tables it writes.
+ */
+public class LineageFingerprints {
+    private static final Logger LOG = LoggerFactory.getLogger(LineageFingerprints.class);
+
+    private static final int SHUTDOWN_HOOK_PRIORITY = 5;
+
+    private static volatile LineageFingerprints instance;
+
+    private final Cache<String, long[]> written;
+    private final long ttlMs;
+    private final File file;
+
+    public static boolean isEnabled(Configuration conf) {
+        return conf.getBoolean("hive.lineage.fingerprint.enable", false);
+    }
+
+    public static LineageFingerprints get(Configuration conf) {
+        if (Objects.isNull(instance)) {
+            synchronized (LineageFingerprints.class) {
+                if (Objects.isNull(instance)) {
+                    instance = new LineageFingerprints(conf);
+                }
+            }
+        }
+        return instance;
+    }
+
+    private LineageFingerprints(Configuration conf) {
+        this.written = CacheBuilder.newBuilder()
+                .maximumSize(conf.getLong("hive.lineage.fingerprint.cache.size", 100000L))
+                .build();
+        this.ttlMs = conf.getLong("hive.lineage.fingerprint.ttl.ms", 86400000L);
+        String path = conf.getTrimmed("hive.lineage.fingerprint.file");
+        this.file = StringUtils.isEmpty(path) ? null : new File(path);
+        if (Objects.nonNull(file)) {
+            load();
+            ShutdownHookManager.get().addShutdownHook(this::save, SHUTDOWN_HOOK_PRIORITY);
+        }
+    }
+
+    /**
+     * Hash of the settings the configured stores are built from, lineage written to one
+     * store set is still new to another.
+     */
+    public static String storeSet(Configuration conf) {
+        Hasher hasher = Hashing.murmur3_128().newHasher();
+        LineageEdgeStoreRegistry.key(conf).forEach((k, v) -> hasher.putString(k, StandardCharsets.UTF_8).putByte((byte) 0)
+                .putString(v, StandardCharsets.UTF_8).putByte((byte) 0));
+        return Long.toHexString(hasher.hash().asLong());
+    }
+
+    /**
+     * Statement key of an edge, null when the edge has no hive.sql.id.
+     */
+    public static String key(String storeSet, Edge edge) {
+        if (StringUtils.isEmpty(edge.getHql()) || edge.getTargets().isEmpty()) return null;
+        String tables = edge.getTargets().stream().map(t -> t.getDatabase() + "." + t.getTable())
+                .distinct().sorted().collect(Collectors.joining(","));
+        return storeSet + "\t" + edge.getHql() + "\t" + tables;
+    }
+
+    /**
+     * Hash of an edge set that does not depend on the order of edges or vertices.
+     */
+    public static long fingerprint(Collection<Edge> edges) {
+        long sum = edges.size();
+        for (Edge edge : edges) {
+            Hasher hasher = Hashing.murmur3_128().newHasher()
+                    .putInt(edge.getType().ordinal())
+                    .putString(StringUtils.defaultString(edge.getExpr()), StandardCharsets.UTF_8).putByte((byte) 0)
+                    .putString(StringUtils.defaultString(edge.getHql()), StandardCharsets.UTF_8).putByte((byte) 0);
+            putVertices(hasher, edge.getSources());
+            hasher.putByte((byte) 1);
+            putVertices(hasher, edge.getTargets());
+            sum += hasher.hash().asLong();
+        }
+        return sum;
+    }
+
+    private static void putVertices(Hasher hasher, Collection<Vertex> vertices) {
+        List<String> labels = vertices.stream()
+                .map(v -> v.getType().ordinal() + v.getLabel() + "\u0000" + StringUtils.defaultString(v.getComment()))
+                .sorted()
+                .collect(Collectors.toList());
+        labels.forEach(l -> hasher.putString(l, StandardCharsets.UTF_8).putByte((byte) 0));
+    }
+
+    /**
+     * True when the statement was written with this fingerprint within the ttl.
+     */
+    public boolean unchanged(String key, long fingerprint) {
+        long[] last = written.getIfPresent(key);
+        return Objects.nonNull(last) && last[0] == fingerprint
+                && (ttlMs <= 0 || System.currentTimeMillis() - last[1] < ttlMs);
+    }
+
+    /**
+     * Remember a fingerprint once every store accepted the statement's edges.
+     */
+    public void record(String key, long fingerprint) {
+        written.put(key, new long[]{fingerprint, System.currentTimeMillis()});
+    }
+
+    private void load() {
+        if (!file.exists()) return;
+        try (BufferedReader reader = Files.newBufferedReader(file.toPath(), StandardCharsets.UTF_8)) {
+            String line;
+            while (Objects.nonNull(line = reader.readLine())) {
+                String[] parts = StringUtils.splitPreserveAllTokens(line, '\t');
+                // lines without the store set are from older versions, their statements are written once more
+                if (parts.length != 5) continue;
+                written.put(parts[0] + "\t" + parts[1] + "\t" + parts[2],
+                        new long[]{Long.parseUnsignedLong(parts[3], 16), Long.parseLong(parts[4])});
+            }
+        } catch (IOException | NumberFormatException ex) {
+            LOG.warn("load lineage fingerprints error,file:" + file, ex);
+        }
+    }
+
+    /**
+     * Write the fingerprints to the file, replacing it atomically.
+     */
+    public void save() {
+        if (Objects.isNull(file)) return;
+        File tmp = new File(file.getPath() + ".tmp");
+        try {
+            try (BufferedWriter writer = Files.newBufferedWriter(tmp.toPath(), StandardCharsets.UTF_8)) {
+                for (Map.Entry<String, long[]> e : written.asMap().entrySet()) {
+                    writer.write(e.getKey() + "\t" + Long.toHexString(e.getValue()[0]) + "\t" + e.getValue()[1]);
+                    writer.newLine();
+                }
+            }
+            Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException ex) {
+            LOG.error("save lineage fingerprints error,file:" + file, ex);
+        }
+    }
+}
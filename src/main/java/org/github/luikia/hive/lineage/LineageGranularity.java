@@ -0,0 +1,59 @@
+package org.github.luikia.hive.lineage;
+
+import com.google.common.collect.ImmutableSet;
+import org.apache.commons.lang3.StringUtils;
+import org.apache.hadoop.conf.Configuration;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Set;
+
+/**
+ * Which tables keep column level lineage, from hive.lineage.granularity:
+ * column keeps every column, table collapses every column into its table,
+ * hybrid keeps columns only for the databases and tables of hive.lineage.granularity.column.allowlist.
+ */
+final class LineageGranularity {
+
+    private static final Logger LOG = LoggerFactory.getLogger(LineageGranularity.class);
+
+    enum Mode {COLUMN, TABLE, HYBRID}
+
+    private final Mode mode;
+    private final Set<String> allowlist;
+
+    private LineageGranularity(Mode mode, Set<String> allowlist) {
+        this.mode = mode;
+        this.allowlist = allowlist;
+    }
+
+    static LineageGranularity of(Configuration conf) {
+        String value = conf.getTrimmed("hive.lineage.granularity", Mode.COLUMN.name());
+        Mode mode;
+        try {
+            mode = Mode.valueOf(StringUtils.upperCase(value));
+        } catch (IllegalArgumentException ex) {
+            LOG.warn("unknown hive.lineage.granularity " + value + ",use column");
+            mode = Mode.COLUMN;
+        }
+        Set<String> allowlist = mode == Mode.HYBRID
+                ? ImmutableSet.copyOf(StringUtils.lowerCase(conf.getTrimmed("hive.lineage.granularity.column.allowlist", "")).split("\\s*,\\s*"))
+                : ImmutableSet.of();
+        return new LineageGranularity(mode, allowlist);
+    }
+
+    /**
+     * Whether the columns of this table are kept, allowlist entries are a database or database.table.
+     */
+    boolean keepsColumns(String db, String table) {
+        switch (mode) {
+            case COLUMN:
+                return true;
+            case TABLE:
+                return false;
+            default:
+                String d = StringUtils.lowerCase(db);
+                return allowlist.contains(d) || allowlist.contains(d + "." + StringUtils.lowerCase(table));
+        }
+    }
+}
@@ -0,0 +1,303 @@
+package org.github.luikia.hive.lineage;
+
+import com.google.common.collect.Maps;
+import org.apache.hadoop.metrics2.util.MBeans;
+
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.function.ToLongFunction;
+
+/**
+ * Process-wide lineage metrics, registered as a JMX MBean so they show up
+ * in the HiveServer2 /jmx servlet next to the server's own metrics.
+ */
+public final class LineageMetrics implements LineageMetricsMXBean {
+
+    private static final LineageMetrics INSTANCE = new LineageMetrics();
+
+    static {
+        MBeans.register("HiveServer2", "LineageMetrics", INSTANCE);
+    }
+
+    private final AtomicLong queries = new AtomicLong();
+    private final AtomicLong failures = new AtomicLong();
+    private final AtomicLong edges = new AtomicLong();
+    private final AtomicLong vertices = new AtomicLong();
+    private final AtomicLong statements = new AtomicLong();
+    private final AtomicLong httpErrors = new AtomicLong();
+    private final AtomicLong retries = new AtomicLong();
+    private final AtomicLong bytesSent = new AtomicLong();
+
+    private final Histogram hookLatency = new Histogram();
+    private final Histogram getEdgesLatency = new Histogram();
+    private final Histogram storeLatency = new Histogram();
+    private final Histogram neo4jRequestLatency = new Histogram();
+    private final Histogram edgesPerQuery = new Histogram();
+    private final Histogram verticesPerQuery = new Histogram();
+    private final Histogram statementsPerStoreCall = new Histogram();
+
+    private LineageMetrics() {}
+
+    public static LineageMetrics get() {
+        return INSTANCE;
+    }
+
+    public void hook(long startNanos, boolean failed) {
+        queries.incrementAndGet();
+        if (failed) failures.incrementAndGet();
+        hookLatency.record(micros(startNanos));
+    }
+
+    public void getEdges(long startNanos, int edgeCount, int vertexCount) {
+        getEdgesLatency.record(micros(startNanos));
+        edges.addAndGet(edgeCount);
+        vertices.addAndGet(vertexCount);
+        edgesPerQuery.record(edgeCount);
+        verticesPerQuery.record(vertexCount);
+    }
+
+    public void store(long startNanos) {
+        storeLatency.record(micros(startNanos));
+    }
+
+    /**
+     * Statements sent by one Neo4j store or heartbeat call. A query may make several calls
+     * (streamed chunks, heartbeats) and batches of many queries may be coalesced into one.
+     */
+    public void statements(int count) {
+        statements.addAndGet(count);
+        statementsPerStoreCall.record(count);
+    }
+
+    public void neo4jRequest(long startNanos, long bytes, boolean failed) {
+        neo4jRequestLatency.record(micros(startNanos));
+        bytesSent.addAndGet(bytes);
+        if (failed) httpErrors.incrementAndGet();
+    }
+
+    public void retry() {
+        retries.incrementAndGet();
+    }
+
+    @Override
+    public long getQueries() {
+        return queries.get();
+    }
+
+    @Override
+    public long getFailures() {
+        return failures.get();
+    }
+
+    @Override
+    public long getEdges() {
+        return edges.get();
+    }
+
+    @Override
+    public long getVertices() {
+        return vertices.get();
+    }
+
+    @Override
+    public long getStatements() {
+        return statements.get();
+    }
+
+    @Override
+    public long getHttpErrors() {
+        return httpErrors.get();
+    }
+
+    @Override
+    public long getRetries() {
+        return retries.get();
+    }
+
+    @Override
+    public long getBytesSent() {
+        return bytesSent.get();
+    }
+
+    @Override
+    public int getQueueDepth() {
+        AsyncLineageDispatcher dispatcher = AsyncLineageDispatcher.current();
+        return Objects.isNull(dispatcher) ? 0 : dispatcher.getQueueSize();
+    }
+
+    @Override
+    public long getQueueDropped() {
+        AsyncLineageDispatcher dispatcher = AsyncLineageDispatcher.current();
+        return Objects.isNull(dispatcher) ? 0 : dispatcher.getDropped();
+    }
+
+    @Override
+    public long getCoalescedEdges() {
+        AsyncLineageDispatcher dispatcher = AsyncLineageDispatcher.current();
+        return Objects.isNull(dispatcher) ? 0 : dispatcher.getCoalesced();
+    }
+
+    @Override
+    public long getSpoolBacklogBytes() {
+        LineageSpool spool = LineageSpool.current();
+        return Objects.isNull(spool) ? 0 : spool.getBacklogBytes();
+    }
+
+    @Override
+    public Map<String, Long> getStoreFailures() {
+        return perStore(LineageStoreGuard::getFailures);
+    }
+
+    @Override
+    public Map<String, Long> getStoreTimeouts() {
+        return perStore(LineageStoreGuard::getTimeouts);
+    }
+
+    @Override
+    public Map<String, Long> getStoreRejected() {
+        return perStore(LineageStoreGuard::getRejected);
+    }
+
+    @Override
+    public Map<String, Long> getStoreShortCircuited() {
+        return perStore(LineageStoreGuard::getShortCircuited);
+    }
+
+    @Override
+    public Map<String, String> getStoreBreakerStates() {
+        Map<String, String> result = Maps.newTreeMap();
+        for (LineageEdgeStore store : LineageEdgeStoreRegistry.all()) {
+            if (Objects.nonNull(store.guard)) {
+                result.put(store.guard.getName(), store.guard.getState().name());
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Counter summed over the cached stores of each class.
+     */
+    private static Map<String, Long> perStore(ToLongFunction<LineageStoreGuard> counter) {
+        Map<String, Long> result = Maps.newTreeMap();
+        for (LineageEdgeStore store : LineageEdgeStoreRegistry.all()) {
+            if (Objects.nonNull(store.guard)) {
+                result.merge(store.guard.getName(), counter.applyAsLong(store.guard), Long::sum);
+            }
+        }
+        return result;
+    }
+
+    @Override
+    public Snapshot getHookLatency() {
+        return hookLatency.snapshot();
+    }
+
+    @Override
+    public Snapshot getGetEdgesLatency() {
+        return getEdgesLatency.snapshot();
+    }
+
+    @Override
+    public Snapshot getStoreLatency() {
+        return storeLatency.snapshot();
+    }
+
+    @Override
+    public Snapshot getNeo4jRequestLatency() {
+        return neo4jRequestLatency.snapshot();
+    }
+
+    @Override
+    public Snapshot getEdgesPerQuery() {
+        return edgesPerQuery.snapshot();
+    }
+
+    @Override
+    public Snapshot getVerticesPerQuery() {
+        return verticesPerQuery.snapshot();
+    }
+
+    @Override
+    public Snapshot getStatementsPerStoreCall() {
+        return statementsPerStoreCall.snapshot();
+    }
+
+    private static long micros(long startNanos) {
+        return TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - startNanos);
+    }
+
+    /**
+     * Lock-free histogram with power-of-two buckets, percentiles are accurate within a factor of two.
+     * Latencies are recorded in microseconds.
+     */
+    static final class Histogram {
+        private final AtomicLongArray buckets = new AtomicLongArray(64);
+        private final AtomicLong count = new AtomicLong();
+        private final AtomicLong sum = new AtomicLong();
+        private final AtomicLong max = new AtomicLong();
+
+        void record(long value) {
+            long v = Math.max(0, value);
+            buckets.incrementAndGet(64 - Long.numberOfLeadingZeros(v));
+            count.incrementAndGet();
+            sum.addAndGet(v);
+            max.accumulateAndGet(v, Math::max);
+        }
+
+        Snapshot snapshot() {
+            long n = count.get();
+            return new Snapshot(n, n == 0 ? 0 : sum.get() / n, percentile(n, 0.5), percentile(n, 0.99), max.get());
+        }
+
+        private long percentile(long n, double p) {
+            long rank = (long) Math.ceil(n * p);
+            long seen = 0;
+            for (int i = 0; i < 64; i++) {
+                seen += buckets.get(i);
+                if (seen >= rank && seen > 0) {
+                    return i == 0 ? 0 : Math.min((1L << i) - 1, max.get());
+                }
+            }
+            return max.get();
+        }
+    }
+
+    public static final class Snapshot {
+        private final long count;
+        private final long mean;
+        private final long p50;
+        private final long p99;
+        private final long max;
+
+        public Snapshot(long count, long mean, long p50, long p99, long max) {
+            this.count = count;
+            this.mean = mean;
+            this.p50 = p50;
+            this.p99 = p99;
+            this.max = max;
+        }
+
+        public long getCount() {
+            return count;
+        }
+
+        public long getMean() {
+            return mean;
+        }
+
+        public long getP50() {
+            return p50;
+        }
+
+        public long getP99() {
+            return p99;
+        }
+
+        public long getMax() {
+            return max;
+        }
+    }
+}
@@ -0,0 +1,57 @@
+package org.github.luikia.hive.lineage;
+
+import java.util.Map;
+
+/**
+ * Lineage hook and store metrics, published under Hadoop:service=HiveServer2,name=LineageMetrics.
+ */
+public interface LineageMetricsMXBean {
+
+    long getQueries();
+
+    long getFailures();
+
+    long getEdges();
+
+    long getVertices();
+
+    long getStatements();
+
+    long getHttpErrors();
+
+    long getRetries();
+
+    long getBytesSent();
+
+    int getQueueDepth();
+
+    long getQueueDropped();
+
+    long getCoalescedEdges();
+
+    long getSpoolBacklogBytes();
+
+    Map<String, Long> getStoreFailures();
+
+    Map<String, Long> getStoreTimeouts();
+
+    Map<String, Long> getStoreRejected();
+
+    Map<String, Long> getStoreShortCircuited();
+
+    Map<String, String> getStoreBreakerStates();
+
+    LineageMetrics.Snapshot getHookLatency();
+
+    LineageMetrics.Snapshot getGetEdgesLatency();
+
+    LineageMetrics.Snapshot getStoreLatency();
+
+    LineageMetrics.Snapshot getNeo4jRequestLatency();
+
+    LineageMetrics.Snapshot getEdgesPerQuery();
+
+    LineageMetrics.Snapshot getVerticesPerQuery();
+
+    LineageMetrics.Snapshot getStatementsPerStoreCall();
+}
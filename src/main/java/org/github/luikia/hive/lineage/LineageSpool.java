@@ -0,0 +1,393 @@
+package org.github.luikia.hive.lineage;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import org.apache.commons.lang3.StringUtils;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.util.ShutdownHookManager;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.zip.CRC32;
+
+/**
+ * Durable append-only journal in front of the stores.
+ * Batches are appended to segment files by the query thread and shipped by a
+ * replayer thread, which advances its checkpoint only after every store accepted them.
+ * A record is [payload length][crc32][payload], the payload is a binary {@link LineageBatch}.
+ */
+public class LineageSpool {
+    private static final Logger LOG = LoggerFactory.getLogger(LineageSpool.class);
+
+    private static final String SEGMENT_PREFIX = "segment-";
+
+    private static final String SEGMENT_SUFFIX = ".log";
+
+    private static final String CHECKPOINT = "checkpoint";
+
+    private static final int HEADER_BYTES = 8;
+
+    private static final int SHUTDOWN_HOOK_PRIORITY = 15;
+
+    private static volatile LineageSpool instance;
+
+    private final File dir;
+    private final long segmentBytes;
+    private final long maxBytes;
+    private final int replayBatch;
+    private final long retryMs;
+    private final boolean sync;
+    private final Thread replayer;
+
+    private FileChannel writer;
+    private long writeSeq;
+    private long writeSize;
+    private volatile boolean closed = false;
+
+    // only written by the replayer thread after construction
+    private volatile long readSeq;
+    private volatile long readOffset;
+
+    public static boolean isEnabled(Configuration conf) {
+        return conf.getBoolean("hive.lineage.spool.enable", false);
+    }
+
+    public static boolean isConfigured(Configuration conf) {
+        return StringUtils.isNotEmpty(conf.getTrimmed("hive.lineage.spool.dir"));
+    }
+
+    /**
+     * The open spool, or null when it was never used.
+     */
+    public static LineageSpool current() {
+        return instance;
+    }
+
+    public static LineageSpool get(Configuration conf) {
+        if (Objects.isNull(instance)) {
+            synchronized (LineageSpool.class) {
+                if (Objects.isNull(instance)) {
+                    try {
+                        instance = new LineageSpool(conf);
+                    } catch (IOException ex) {
+                        throw new UncheckedIOException(ex);
+                    }
+                }
+            }
+        }
+        return instance;
+    }
+
+    private LineageSpool(Configuration conf) throws IOException {
+        String path = conf.getTrimmed("hive.lineage.spool.dir");
+        if (StringUtils.isEmpty(path)) {
+            throw new IllegalArgumentException("hive.lineage.spool.dir is not set");
+        }
+        this.dir = new File(path);
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            throw new IOException("can not create spool dir " + dir);
+        }
+        this.segmentBytes = conf.getLong("hive.lineage.spool.segment.bytes", 64L * 1024 * 1024);
+        this.maxBytes = conf.getLong("hive.lineage.spool.max.bytes", 1024L * 1024 * 1024);
+        this.replayBatch = conf.getInt("hive.lineage.spool.replay.batch", 64);
+        this.retryMs = conf.getLong("hive.lineage.spool.retry.ms", 5000L);
+        this.sync = conf.getBoolean("hive.lineage.spool.sync", false);
+        recover();
+        this.replayer = new Thread(this::replay, "lineage-spool-replayer");
+        this.replayer.setDaemon(true);
+        this.replayer.start();
+        ShutdownHookManager.get().addShutdownHook(this::close, SHUTDOWN_HOOK_PRIORITY);
+    }
+
+    public void append(Configuration conf, List<Edge> edges) throws IOException {
+        append(LineageBatch.of(conf, edges));
+    }
+
+    public void append(LineageBatch batch) throws IOException {
+        ByteBuffer buf = encode(batch);
+        synchronized (this) {
+            if (closed) {
+                throw new IOException("lineage spool is closed");
+            }
+            while (buf.hasRemaining()) {
+                writer.write(buf);
+            }
+            if (sync) {
+                writer.force(false);
+            }
+            writeSize += buf.limit();
+            if (writeSize >= segmentBytes) {
+                rotate();
+            }
+            notifyAll();
+        }
+    }
+
+    /**
+     * Bytes written to the journal but not yet acknowledged by the stores.
+     */
+    public synchronized long getBacklogBytes() {
+        long total = 0;
+        for (long seq : listSegments()) {
+            total += seq == writeSeq ? writeSize : segmentFile(seq).length();
+        }
+        return Math.max(0, total - readOffset);
+    }
+
+    public void close() {
+        synchronized (this) {
+            if (closed) return;
+            closed = true;
+            notifyAll();
+            try {
+                writer.force(false);
+                writer.close();
+            } catch (IOException ex) {
+                LOG.error("close spool segment error", ex);
+            }
+        }
+        replayer.interrupt();
+    }
+
+    /**
+     * Open the newest segment for append, cutting off a record torn by a crash,
+     * and restore the replay position from the checkpoint.
+     */
+    private void recover() throws IOException {
+        long[] segments = listSegments();
+        this.writeSeq = segments.length == 0 ? 0 : segments[segments.length - 1];
+        this.writer = FileChannel.open(segmentFile(writeSeq).toPath(),
+                StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+        this.writeSize = validLength(writer);
+        if (writeSize < writer.size()) {
+            LOG.warn("truncate torn spool record,segment:" + writeSeq + ",offset:" + writeSize);
+            writer.truncate(writeSize);
+        }
+        writer.position(writeSize);
+        this.readSeq = segments.length == 0 ? writeSeq : segments[0];
+        this.readOffset = 0;
+        File checkpoint = new File(dir, CHECKPOINT);
+        if (checkpoint.exists()) {
+            String[] parts = StringUtils.split(StringUtils.trim(
+                    new String(Files.readAllBytes(checkpoint.toPath()), StandardCharsets.UTF_8)), " ");
+            long seq = Long.parseLong(parts[0]);
+            if (seq >= readSeq) {
+                this.readSeq = seq;
+                this.readOffset = Long.parseLong(parts[1]);
+            }
+        }
+    }
+
+    private void rotate() throws IOException {
+        writer.force(false);
+        writer.close();
+        writeSeq++;
+        writer = FileChannel.open(segmentFile(writeSeq).toPath(),
+                StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+        writeSize = 0;
+        // size cap, give up the oldest unreplayed segments
+        long[] segments = listSegments();
+        long total = 0;
+        for (long seq : segments) {
+            total += segmentFile(seq).length();
+        }
+        for (int i = 0; i < segments.length && total > maxBytes && segments[i] < writeSeq; i++) {
+            File oldest = segmentFile(segments[i]);
+            total -= oldest.length();
+            LOG.warn("spool exceeds " + maxBytes + " bytes,drop segment " + oldest);
+            Files.deleteIfExists(oldest.toPath());
+        }
+    }
+
+    private void replay() {
+        while (!closed) {
+            try {
+                long seq = readSeq;
+                long offset = readOffset;
+                List<LineageBatch> batches = Lists.newArrayList();
+                while (batches.size() < replayBatch) {
+                    long limit;
+                    boolean active;
+                    synchronized (this) {
+                        active = seq == writeSeq;
+                        limit = writeSize;
+                    }
+                    File segment = segmentFile(seq);
+                    if (!segment.exists()) {
+                        if (active) break;
+                        seq++;
+                        offset = 0;
+                        continue;
+                    }
+                    try (FileChannel ch = FileChannel.open(segment.toPath(), StandardOpenOption.READ)) {
+                        if (!active) limit = ch.size();
+                        offset = read(ch, offset, limit, replayBatch, batches);
+                    }
+                    if (active || batches.size() >= replayBatch) break;
+                    seq++;
+                    offset = 0;
+                }
+                if (seq == readSeq && offset == readOffset) {
+                    synchronized (this) {
+                        if (!closed && readSeq == writeSeq && readOffset >= writeSize) {
+                            wait(1000);
+                        }
+                    }
+                    continue;
+                }
+                if (deliver(batches)) {
+                    checkpoint(seq, offset);
+                } else {
+                    LineageMetrics.get().retry();
+                    Thread.sleep(retryMs);
+                }
+            } catch (InterruptedException ex) {
+                return;
+            } catch (Throwable t) {
+                LOG.error("replay spool error", t);
+                try {
+                    Thread.sleep(retryMs);
+                } catch (InterruptedException ex) {
+                    return;
+                }
+            }
+        }
+    }
+
+    /**
+     * One record, ready to be written.
+     */
+    static ByteBuffer encode(LineageBatch batch) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(4096);
+        DataOutputStream out = new DataOutputStream(bytes);
+        batch.write(out);
+        out.flush();
+        byte[] payload = bytes.toByteArray();
+        CRC32 crc = new CRC32();
+        crc.update(payload);
+        ByteBuffer buf = ByteBuffer.allocate(HEADER_BYTES + payload.length);
+        buf.putInt(payload.length).putInt((int) crc.getValue()).put(payload);
+        buf.flip();
+        return buf;
+    }
+
+    /**
+     * Read records from offset up to limit into batches, until batches holds max of them.
+     *
+     * @return the offset after the last record read
+     */
+    static long read(FileChannel ch, long offset, long limit, int max, List<LineageBatch> batches) throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES);
+        while (batches.size() < max && offset + HEADER_BYTES <= limit) {
+            header.clear();
+            readFully(ch, header, offset);
+            header.flip();
+            int length = header.getInt();
+            int crc = header.getInt();
+            if (length < 0 || offset + HEADER_BYTES + length > limit) {
+                LOG.error("corrupt spool record,offset:" + offset + ",skip to " + limit);
+                return limit;
+            }
+            ByteBuffer payload = ByteBuffer.allocate(length);
+            readFully(ch, payload, offset + HEADER_BYTES);
+            CRC32 check = new CRC32();
+            check.update(payload.array());
+            if ((int) check.getValue() != crc) {
+                LOG.error("spool record crc mismatch,offset:" + offset + ",skip to " + limit);
+                return limit;
+            }
+            batches.add(LineageBatch.read(new DataInputStream(new ByteArrayInputStream(payload.array()))));
+            offset += HEADER_BYTES + length;
+        }
+        return offset;
+    }
+
+    /**
+     * Ship batches, merging those that share the same stores into one call.
+     */
+    private boolean deliver(List<LineageBatch> batches) {
+        Map<Map<String, String>, List<Edge>> grouped = Maps.newLinkedHashMap();
+        batches.forEach(b -> grouped.computeIfAbsent(b.getConf(), k -> Lists.newArrayList()).addAll(b.getEdges()));
+        boolean success = true;
+        for (Map.Entry<Map<String, String>, List<Edge>> e : grouped.entrySet()) {
+            success &= LineageEdgeStore.storeAll(new LineageBatch(e.getKey(), e.getValue()).toConf(), e.getValue());
+        }
+        return success;
+    }
+
+    private void checkpoint(long seq, long offset) throws IOException {
+        File tmp = new File(dir, CHECKPOINT + ".tmp");
+        Files.write(tmp.toPath(), (seq + " " + offset).getBytes(StandardCharsets.UTF_8));
+        Files.move(tmp.toPath(), new File(dir, CHECKPOINT).toPath(),
+                StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        this.readSeq = seq;
+        this.readOffset = offset;
+        for (long s : listSegments()) {
+            if (s < seq) Files.deleteIfExists(segmentFile(s).toPath());
+        }
+    }
+
+    /**
+     * Length of the leading run of complete, checksummed records.
+     */
+    static long validLength(FileChannel ch) throws IOException {
+        long size = ch.size();
+        long offset = 0;
+        ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES);
+        while (offset + HEADER_BYTES <= size) {
+            header.clear();
+            readFully(ch, header, offset);
+            header.flip();
+            int length = header.getInt();
+            int crc = header.getInt();
+            if (length < 0 || offset + HEADER_BYTES + length > size) break;
+            ByteBuffer payload = ByteBuffer.allocate(length);
+            readFully(ch, payload, offset + HEADER_BYTES);
+            CRC32 check = new CRC32();
+            check.update(payload.array());
+            if ((int) check.getValue() != crc) break;
+            offset += HEADER_BYTES + length;
+        }
+        return offset;
+    }
+
+    private static void readFully(FileChannel ch, ByteBuffer buf, long position) throws IOException {
+        while (buf.hasRemaining()) {
+            int n = ch.read(buf, position + buf.position());
+            if (n < 0) throw new IOException("unexpected end of spool segment");
+        }
+    }
+
+    private long[] listSegments() {
+        String[] names = dir.list((d, name) -> name.startsWith(SEGMENT_PREFIX) && name.endsWith(SEGMENT_SUFFIX));
+        if (Objects.isNull(names)) return new long[0];
+        long[] segments = new long[names.length];
+        for (int i = 0; i < names.length; i++) {
+            segments[i] = Long.parseLong(StringUtils.removeEnd(
+                    StringUtils.removeStart(names[i], SEGMENT_PREFIX), SEGMENT_SUFFIX));
+        }
+        Arrays.sort(segments);
+        return segments;
+    }
+
+    private File segmentFile(long seq) {
+        return new File(dir, String.format("%s%020d%s", SEGMENT_PREFIX, seq, SEGMENT_SUFFIX));
+    }
+}
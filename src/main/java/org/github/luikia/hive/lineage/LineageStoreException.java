@@ -0,0 +1,16 @@
+package org.github.luikia.hive.lineage;
+
+/**
+ * Thrown by a store when edges could not be persisted, so callers that
+ * keep the edges durably know they have to retry.
+ */
+public class LineageStoreException extends RuntimeException {
+
+    public LineageStoreException(String message) {
+        super(message);
+    }
+
+    public LineageStoreException(String message, Throwable cause) {
+        super(message, cause);
+    }
+}
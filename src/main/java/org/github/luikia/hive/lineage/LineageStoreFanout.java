@@ -0,0 +1,232 @@
+package org.github.luikia.hive.lineage;
+
+import com.google.common.collect.Lists;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import org.apache.hadoop.conf.Configuration;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.List;
+import java.util.Objects;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Consumer;
+
+/**
+ * Runs a call against every configured store in parallel on a shared bounded pool.
+ * Each store is waited for at most its own timeout, counted from the start of the fan-out,
+ * so the caller waits for the slowest store rather than the sum of all of them.
+ * Stores whose breaker is open, or that get no write slot in time, are skipped and the fallback is called for them instead.
+ * With hive.lineage.store.parallel.enable=false the stores are called one after another on the calling thread:
+ * breakers, write slots and the query deadline still apply, the per-store timeout does not.
+ */
+final class LineageStoreFanout {
+    private static final Logger LOG = LoggerFactory.getLogger(LineageStoreFanout.class);
+
+    /**
+     * No deadline for the whole fan-out, only the per-store timeouts apply.
+     */
+    static final long NO_DEADLINE = Long.MAX_VALUE;
+
+    private static volatile ExecutorService pool;
+
+    private LineageStoreFanout() {}
+
+    /**
+     * @param deadlineNanos System.nanoTime() after which the caller stops waiting, writes still running are left to finish
+     * @param fallback      called with the stores skipped because their breaker is open, may be null
+     * @return true if every store finished the call without error in time
+     */
+    static boolean run(final Configuration conf, final String action, final Consumer<LineageEdgeStore> call,
+                       final long deadlineNanos, final Consumer<LineageEdgeStore> fallback) {
+        List<LineageEdgeStore> stores = LineageEdgeStoreRegistry.get(conf);
+        if (deadlineNanos != NO_DEADLINE && System.nanoTime() - deadlineNanos >= 0) {
+            LOG.warn(action + " lineage skipped,query budget exhausted");
+            return false;
+        }
+        if (!conf.getBoolean("hive.lineage.store.parallel.enable", true)) {
+            boolean success = true;
+            for (LineageEdgeStore store : stores) {
+                if (deadlineNanos != NO_DEADLINE && System.nanoTime() - deadlineNanos >= 0) {
+                    LOG.warn(action + " lineage gave up,query budget exhausted,store:" + store.guard.getName());
+                    return false;
+                }
+                LineageStoreGuard guard = store.guard;
+                // same write slots as the parallel path, the call itself runs on this thread without a timeout
+                long waitMs = guard.getTimeoutMs();
+                if (deadlineNanos != NO_DEADLINE) {
+                    waitMs = Math.min(waitMs, TimeUnit.NANOSECONDS.toMillis(deadlineNanos - System.nanoTime()));
+                }
+                if (!guard.tryAcquire(waitMs)) {
+                    LOG.warn(action + " lineage skipped,no write slot within " + guard.getTimeoutMs() + "ms,store:" + guard.getName());
+                    fallback(store, action, fallback);
+                    success = false;
+                    continue;
+                }
+                try {
+                    if (!guard.allowRequest()) {
+                        shortCircuit(store, action, fallback);
+                        success = false;
+                        continue;
+                    }
+                    long start = System.nanoTime();
+                    boolean ok = runOne(store, action, call);
+                    guard.record(!ok, TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+                    success &= ok;
+                } finally {
+                    guard.release();
+                }
+            }
+            return success;
+        }
+        long start = System.nanoTime();
+        List<Call> calls = Lists.newArrayListWithCapacity(stores.size());
+        for (LineageEdgeStore store : stores) {
+            LineageStoreGuard guard = store.guard;
+            // wait for a slot within the store timeout, counted from the start of the fan-out like the write itself
+            long waitMs = guard.getTimeoutMs() - TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+            if (deadlineNanos != NO_DEADLINE) {
+                waitMs = Math.min(waitMs, TimeUnit.NANOSECONDS.toMillis(deadlineNanos - System.nanoTime()));
+            }
+            if (!guard.tryAcquire(waitMs)) {
+                LOG.warn(action + " lineage skipped,no write slot within " + guard.getTimeoutMs() + "ms,store:" + guard.getName());
+                fallback(store, action, fallback);
+                calls.add(null);
+                continue;
+            }
+            if (!guard.allowRequest()) {
+                guard.release();
+                shortCircuit(store, action, fallback);
+                calls.add(null);
+                continue;
+            }
+            Call c = new Call(guard);
+            try {
+                c.future = pool(conf).submit(() -> {
+                    if (!c.started.compareAndSet(false, true)) {
+                        // timed out while queued, the waiting side released and recorded it
+                        return false;
+                    }
+                    // time queued in the shared pool is not the store being slow
+                    long callStart = System.nanoTime();
+                    boolean ok = false;
+                    try {
+                        ok = runOne(store, action, call);
+                        return ok;
+                    } finally {
+                        guard.release();
+                        c.record(!ok, TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - callStart));
+                    }
+                });
+                calls.add(c);
+            } catch (RejectedExecutionException ex) {
+                guard.release();
+                guard.record(true, 0);
+                LOG.warn(action + " lineage rejected,store pool is full,store:" + guard.getName());
+                calls.add(null);
+            }
+        }
+        boolean success = true;
+        for (Call c : calls) {
+            if (Objects.isNull(c)) {
+                success = false;
+                continue;
+            }
+            LineageStoreGuard guard = c.guard;
+            long remaining = guard.getTimeoutMs() - TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+            boolean budget = false;
+            if (deadlineNanos != NO_DEADLINE) {
+                long left = TimeUnit.NANOSECONDS.toMillis(deadlineNanos - System.nanoTime());
+                if (left < remaining) {
+                    remaining = left;
+                    budget = true;
+                }
+            }
+            try {
+                success &= c.future.get(Math.max(0, remaining), TimeUnit.MILLISECONDS);
+            } catch (TimeoutException ex) {
+                success = false;
+                if (budget) {
+                    // the store is still within its own timeout, let it finish in the background
+                    LOG.warn(action + " lineage gave up,query budget exhausted,store:" + guard.getName());
+                    continue;
+                }
+                guard.timedOut();
+                if (c.started.compareAndSet(false, true)) {
+                    guard.release();
+                }
+                c.record(true, guard.getTimeoutMs());
+                c.future.cancel(true);
+                LOG.error(action + " lineage timeout after " + guard.getTimeoutMs() + "ms,store:" + guard.getName());
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                return false;
+            } catch (ExecutionException ex) {
+                LOG.error(action + " lineage error,store:" + guard.getName(), ex.getCause());
+                success = false;
+            }
+        }
+        return success;
+    }
+
+    private static void shortCircuit(LineageEdgeStore store, String action, Consumer<LineageEdgeStore> fallback) {
+        LOG.debug(action + " lineage short-circuited,breaker open,store:" + store.guard.getName());
+        fallback(store, action, fallback);
+    }
+
+    private static void fallback(LineageEdgeStore store, String action, Consumer<LineageEdgeStore> fallback) {
+        if (Objects.isNull(fallback)) return;
+        try {
+            fallback.accept(store);
+        } catch (Exception ex) {
+            LOG.error(action + " lineage fallback error,store:" + store.guard.getName(), ex);
+        }
+    }
+
+    private static boolean runOne(LineageEdgeStore store, String action, Consumer<LineageEdgeStore> call) {
+        try {
+            call.accept(store);
+            return true;
+        } catch (Exception ex) {
+            LOG.error(action + " lineage error,store:" + store.getClass().getName(), ex);
+            return false;
+        }
+    }
+
+    private static ExecutorService pool(Configuration conf) {
+        if (Objects.isNull(pool)) {
+            synchronized (LineageStoreFanout.class) {
+                if (Objects.isNull(pool)) {
+                    int threads = conf.getInt("hive.lineage.store.threads", 32);
+                    ThreadPoolExecutor executor = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS,
+                            new LinkedBlockingQueue<>(threads * 4),
+                            new ThreadFactoryBuilder().setDaemon(true).setNameFormat("lineage-store-%d").build());
+                    executor.allowCoreThreadTimeOut(true);
+                    pool = executor;
+                }
+            }
+        }
+        return pool;
+    }
+
+    /**
+     * One store call of a fan-out. Its outcome goes to the breaker once,
+     * from the call itself or from the timeout, whichever comes first.
+     */
+    private static final class Call {
+        final LineageStoreGuard guard;
+        final AtomicBoolean started = new AtomicBoolean();
+        final AtomicBoolean recorded = new AtomicBoolean();
+        Future<Boolean> future;
+
+        Call(LineageStoreGuard guard) {
+            this.guard = guard;
+        }
+
+        void record(boolean failed, long latencyMs) {
+            if (recorded.compareAndSet(false, true)) {
+                guard.record(failed, latencyMs);
+            }
+        }
+    }
+}
@@ -0,0 +1,178 @@
+package org.github.luikia.hive.lineage;
+
+import org.apache.hadoop.conf.Configuration;
+
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Limits of one store in the parallel fan-out: how long a write may take,
+ * how many writes may be in flight, how often it failed, and a circuit breaker.
+ * Settings are read from hive.lineage.store.&lt;SimpleClassName&gt;.* and default to hive.lineage.store.*.
+ * <p>
+ * The breaker opens when too many of the last calls failed or were slow, fails fast while open,
+ * and after the open period lets a single probe through: its outcome closes or reopens the breaker.
+ */
+final class LineageStoreGuard {
+
+    enum State {CLOSED, OPEN, HALF_OPEN}
+
+    private final String name;
+    private final long timeoutMs;
+    private final Semaphore permits;
+    private final AtomicLong failures = new AtomicLong();
+    private final AtomicLong timeouts = new AtomicLong();
+    private final AtomicLong rejected = new AtomicLong();
+    private final AtomicLong shortCircuited = new AtomicLong();
+
+    private final boolean breaker;
+    private final int minCalls;
+    private final float failureRatio;
+    private final long slowMs;
+    private final float slowRatio;
+    private final long openMs;
+
+    // outcomes of the last calls, guarded by this
+    private final boolean[] failedWindow;
+    private final boolean[] slowWindow;
+    private int next = 0;
+    private int calls = 0;
+    private int failedCalls = 0;
+    private int slowCalls = 0;
+    private State state = State.CLOSED;
+    private long openedAt;
+    private boolean probing = false;
+
+    LineageStoreGuard(LineageEdgeStore store, Configuration conf) {
+        this.name = store.getClass().getSimpleName();
+        this.timeoutMs = getLong(conf, "timeout.ms", 30000L);
+        this.permits = new Semaphore((int) getLong(conf, "max.concurrent", 4));
+        this.breaker = conf.getBoolean("hive.lineage.store." + name + ".breaker.enable",
+                conf.getBoolean("hive.lineage.store.breaker.enable", true));
+        int window = Math.max(1, (int) getLong(conf, "breaker.window", 20));
+        this.failedWindow = new boolean[window];
+        this.slowWindow = new boolean[window];
+        this.minCalls = Math.min(window, (int) getLong(conf, "breaker.min.calls", 10));
+        this.failureRatio = getFloat(conf, "breaker.failure.ratio", 0.5f);
+        this.slowMs = getLong(conf, "breaker.slow.ms", 10000L);
+        this.slowRatio = getFloat(conf, "breaker.slow.ratio", 0.5f);
+        this.openMs = getLong(conf, "breaker.open.ms", 30000L);
+    }
+
+    private long getLong(Configuration conf, String key, long defaultValue) {
+        return conf.getLong("hive.lineage.store." + name + "." + key, conf.getLong("hive.lineage.store." + key, defaultValue));
+    }
+
+    private float getFloat(Configuration conf, String key, float defaultValue) {
+        return conf.getFloat("hive.lineage.store." + name + "." + key, conf.getFloat("hive.lineage.store." + key, defaultValue));
+    }
+
+    String getName() {
+        return name;
+    }
+
+    long getTimeoutMs() {
+        return timeoutMs;
+    }
+
+    /**
+     * Take a slot for a write, waiting up to waitMs while the store has as many writes in flight as allowed.
+     */
+    boolean tryAcquire(long waitMs) {
+        try {
+            if (permits.tryAcquire(Math.max(0, waitMs), TimeUnit.MILLISECONDS)) return true;
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+        rejected.incrementAndGet();
+        failures.incrementAndGet();
+        return false;
+    }
+
+    void release() {
+        permits.release();
+    }
+
+    /**
+     * False while the breaker is open. A call allowed through must report its outcome with {@link #record}.
+     */
+    synchronized boolean allowRequest() {
+        if (!breaker || state == State.CLOSED) return true;
+        if (state == State.OPEN && System.currentTimeMillis() - openedAt >= openMs) {
+            state = State.HALF_OPEN;
+        }
+        if (state == State.HALF_OPEN && !probing) {
+            probing = true;
+            return true;
+        }
+        shortCircuited.incrementAndGet();
+        return false;
+    }
+
+    /**
+     * Outcome of a call let through by {@link #allowRequest()}.
+     */
+    synchronized void record(boolean failed, long latencyMs) {
+        if (failed) failures.incrementAndGet();
+        if (!breaker) return;
+        boolean slow = slowMs > 0 && latencyMs >= slowMs;
+        if (state == State.HALF_OPEN) {
+            probing = false;
+            if (failed || slow) {
+                open();
+            } else {
+                state = State.CLOSED;
+                next = calls = failedCalls = slowCalls = 0;
+            }
+            return;
+        }
+        if (state == State.OPEN) {
+            // a call started before the breaker opened
+            return;
+        }
+        if (calls == failedWindow.length) {
+            if (failedWindow[next]) failedCalls--;
+            if (slowWindow[next]) slowCalls--;
+        } else {
+            calls++;
+        }
+        failedWindow[next] = failed;
+        slowWindow[next] = slow;
+        if (failed) failedCalls++;
+        if (slow) slowCalls++;
+        next = (next + 1) % failedWindow.length;
+        if (calls >= minCalls && (failedCalls >= failureRatio * calls || slowCalls >= slowRatio * calls)) {
+            open();
+        }
+    }
+
+    private void open() {
+        state = State.OPEN;
+        openedAt = System.currentTimeMillis();
+    }
+
+    void timedOut() {
+        timeouts.incrementAndGet();
+    }
+
+    synchronized State getState() {
+        return state;
+    }
+
+    long getFailures() {
+        return failures.get();
+    }
+
+    long getTimeouts() {
+        return timeouts.get();
+    }
+
+    long getRejected() {
+        return rejected.get();
+    }
+
+    long getShortCircuited() {
+        return shortCircuited.get();
+    }
+}
@@ -1,11 +1,16 @@
 package org.github.luikia.hive.lineage;
 
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.collect.Interner;
+import com.google.common.collect.Interners;
 import com.google.gson.stream.JsonWriter;
 import org.apache.commons.io.output.StringBuilderWriter;
 import org.apache.commons.lang.StringUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.io.IOException;
 import java.util.Objects;
 
 public class Vertex {
@@ -15,97 +20,95 @@ public class Vertex {
         COLUMN, TABLE
     }
 
-    private Vertex.Type type;
-    private String label;
-    private String database;
-    private String table;
-    private String column;
-    private String comment;
+    /**
+     * Vertices shared by all queries of the process, weakly referenced so unused labels are collected.
+     */
+    private static final Cache<String, Vertex> POOL = CacheBuilder.newBuilder()
+            .weakValues().maximumSize(1 << 20).build();
 
+    private static final Interner<String> NAMES = Interners.newWeakInterner();
+
+    private final Vertex.Type type;
+    private final String label;
+    private final String database;
+    private final String table;
+    private final String column;
+    private final String comment;
+    private transient int hash;
+
+    /**
+     * Return the pooled vertex for the label, or create and pool a new one.
+     * Pooled vertices are shared between queries, so a vertex is immutable.
+     */
     public static Vertex of(String label, Vertex.Type type, String comment) {
-        return new Vertex(label, type, comment);
+        Vertex vertex = POOL.getIfPresent(label);
+        if (Objects.nonNull(vertex) && vertex.type == type && StringUtils.equals(vertex.comment, comment)) {
+            return vertex;
+        }
+        vertex = new Vertex(label, type, comment);
+        POOL.put(vertex.label, vertex);
+        return vertex;
     }
 
     private Vertex(String label, Vertex.Type type, String comment) {
-        this.label = label;
+        this.label = NAMES.intern(label);
         this.type = type;
         String[] col_split = StringUtils.split(label, ".");
         if (type == Type.COLUMN && col_split.length == 3) {
-            this.database = col_split[0];
-            this.table = col_split[1];
-            this.column = col_split[2];
+            this.database = NAMES.intern(col_split[0]);
+            this.table = NAMES.intern(col_split[1]);
+            this.column = NAMES.intern(col_split[2]);
         } else if (type == Type.TABLE && col_split.length == 2) {
-            this.database = col_split[0];
-            this.table = col_split[1];
+            this.database = NAMES.intern(col_split[0]);
+            this.table = NAMES.intern(col_split[1]);
             this.column = StringUtils.EMPTY;
+        } else {
+            this.database = null;
+            this.table = null;
+            this.column = null;
         }
         this.comment = comment;
     }
 
     @Override
     public int hashCode() {
-        return label.hashCode() + type.hashCode() * 3;
+        int h = hash;
+        if (h == 0) {
+            h = label.hashCode() + type.ordinal() * 3;
+            hash = h;
+        }
+        return h;
     }
 
     public Type getType() {
         return type;
     }
 
-    public void setType(Type type) {
-        this.type = type;
-    }
-
     public String getLabel() {
         return label;
     }
 
-    public void setLabel(String label) {
-        this.label = label;
-    }
-
     public String getDatabase() {
         return database;
     }
 
-    public void setDatabase(String database) {
-        this.database = database;
-    }
-
     public String getTable() {
         return table;
     }
 
-    public void setTable(String table) {
-        this.table = table;
-    }
-
     public String getColumn() {
         return column;
     }
 
-    public void setColumn(String column) {
-        this.column = column;
-    }
-
     public String getComment() {
         return Objects.isNull(comment) ? StringUtils.EMPTY : comment;
     }
 
-    public void setComment(String comment) {
-        this.comment = comment;
-    }
-
     public String toJson() {
         StringBuilderWriter sw = new StringBuilderWriter();
         JsonWriter writer = new JsonWriter(sw);
         try {
-            writer.beginObject();
-            writer.name("name").value(this.column);
-            writer.name("database").value(this.database);
-            writer.name("table").value(this.table);
-            writer.name("comment").value(this.comment);
-            writer.name("label").value(this.label);
-            writer.endObject();
+            writeJson(writer);
             writer.close();
         } catch (Exception ex) {
             LOG.error("to json errot", ex);
@@ -113,6 +116,19 @@ public class Vertex {
         return sw.toString();
     }
 
+    /**
+     * Write this vertex as a json object straight into the writer, without an intermediate string.
+     */
+    public void writeJson(JsonWriter writer) throws IOException {
+        writer.beginObject();
+        writer.name("name").value(this.column);
+        writer.name("database").value(this.database);
+        writer.name("table").value(this.table);
+        writer.name("comment").value(this.comment);
+        writer.name("label").value(this.label);
+        writer.endObject();
+    }
+
     @Override
     public boolean equals(Object obj) {
         if (this == obj) {
@@ -122,6 +138,6 @@ public class Vertex {
             return false;
         }
         Vertex vertex = (Vertex) obj;
-        return label.equals(vertex.label) && type == vertex.type;
+        return hashCode() == vertex.hashCode() && type == vertex.type && label.equals(vertex.label);
     }
 }
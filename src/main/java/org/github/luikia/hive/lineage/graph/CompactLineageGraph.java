@@ -0,0 +1,442 @@
+package org.github.luikia.hive.lineage.graph;
+
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
+import org.github.luikia.hive.lineage.Edge;
+import org.github.luikia.hive.lineage.Vertex;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.*;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.*;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * Read-side lineage graph held in primitive arrays.
+ * <p>
+ * Labels map to int ids and vertex-level dependencies are kept as CSR adjacency
+ * (an offset array and a neighbour array, in both directions), with no object per edge.
+ * Edges applied after the last compaction are appended to per-vertex delta lists, which are
+ * sorted and merged into the compacted adjacency once they grow past a fraction of it.
+ */
+public class CompactLineageGraph {
+    private static final Logger LOG = LoggerFactory.getLogger(CompactLineageGraph.class);
+
+    private static final int MAGIC = 0x4C4E4753;
+
+    private static final byte VERSION = 1;
+
+    private static final int MIN_DELTA_COMPACT = 1 << 16;
+
+    private final ReadWriteLock lock = new ReentrantReadWriteLock();
+    private final Object saveLock = new Object();
+    private final boolean predicates;
+
+    private final Map<String, Integer> ids = Maps.newHashMap();
+    private String[] labels = new String[1024];
+    private byte[] types = new byte[1024];
+    // id of the table vertex each vertex belongs to
+    private int[] tables = new int[1024];
+    private int size = 0;
+
+    private Csr down = Csr.EMPTY;
+    private Csr up = Csr.EMPTY;
+
+    private int[] deltaSources = new int[1024];
+    private int[] deltaTargets = new int[1024];
+    private int deltaSize = 0;
+    // may hold duplicates, dropped on compaction
+    private IntList[] deltaDown = new IntList[1024];
+    private IntList[] deltaUp = new IntList[1024];
+
+    /**
+     * @param predicates also follow PREDICATE edges, only PROJECTION edges otherwise
+     */
+    public CompactLineageGraph(boolean predicates) {
+        this.predicates = predicates;
+    }
+
+    /**
+     * Add the dependencies of newly stored edges.
+     */
+    public void apply(Collection<Edge> edges) {
+        lock.writeLock().lock();
+        try {
+            for (Edge edge : edges) {
+                if (edge.getType() == Edge.Type.PREDICATE && !predicates) continue;
+                for (Vertex s : edge.getSources()) {
+                    int sid = vertexId(s.getLabel(), s.getType());
+                    for (Vertex t : edge.getTargets()) {
+                        addDelta(sid, vertexId(t.getLabel(), t.getType()));
+                    }
+                }
+            }
+            if (deltaSize > Math.max(MIN_DELTA_COMPACT, down.edges.length / 8)) {
+                compact();
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Labels the vertex depends on, up to depth hops away, all of them when depth &lt;= 0.
+     */
+    public Set<String> upstream(String label, int depth) {
+        return closure(label, depth, true);
+    }
+
+    /**
+     * Labels depending on the vertex, up to depth hops away, all of them when depth &lt;= 0.
+     */
+    public Set<String> downstream(String label, int depth) {
+        return closure(label, depth, false);
+    }
+
+    /**
+     * Tables reached downstream from the table or any of its columns, up to depth hops away.
+     */
+    public Set<String> impact(String db, String table, int depth) {
+        lock.readLock().lock();
+        try {
+            Integer t = ids.get(db + "." + table);
+            Set<String> result = Sets.newLinkedHashSet();
+            if (Objects.isNull(t)) return result;
+            IntList start = new IntList();
+            for (int v = 0; v < size; v++) {
+                if (tables[v] == t) start.add(v);
+            }
+            BitSet seen = traverse(start, depth, false);
+            BitSet impacted = new BitSet(size);
+            for (int v = seen.nextSetBit(0); v >= 0; v = seen.nextSetBit(v + 1)) {
+                if (tables[v] != t) impacted.set(tables[v]);
+            }
+            for (int v = impacted.nextSetBit(0); v >= 0; v = impacted.nextSetBit(v + 1)) {
+                result.add(labels[v]);
+            }
+            return result;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    public boolean isPredicates() {
+        return predicates;
+    }
+
+    public int getVertexCount() {
+        return size;
+    }
+
+    public long getEdgeCount() {
+        lock.readLock().lock();
+        try {
+            return down.edges.length + deltaSize;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Write the graph to a snapshot file, replacing it atomically. Only compaction and the copy
+     * of the vertex arrays happen under the lock, the file is written outside it.
+     */
+    public void save(File file) throws IOException {
+        int n;
+        String[] snapshotLabels;
+        byte[] snapshotTypes;
+        Csr snapshotDown;
+        lock.writeLock().lock();
+        try {
+            if (deltaSize > 0) compact();
+            n = size;
+            snapshotLabels = Arrays.copyOf(labels, n);
+            snapshotTypes = Arrays.copyOf(types, n);
+            // never modified once built, compaction replaces it
+            snapshotDown = down;
+        } finally {
+            lock.writeLock().unlock();
+        }
+        synchronized (saveLock) {
+            File tmp = new File(file.getPath() + ".tmp");
+            try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp), 1 << 16))) {
+                out.writeInt(MAGIC);
+                out.writeByte(VERSION);
+                out.writeBoolean(predicates);
+                out.writeInt(n);
+                for (int v = 0; v < n; v++) {
+                    out.writeUTF(snapshotLabels[v]);
+                    out.writeByte(snapshotTypes[v]);
+                }
+                out.writeInt(snapshotDown.edges.length);
+                for (int i = 0; i <= n; i++) {
+                    out.writeInt(snapshotDown.offset(i));
+                }
+                for (int e : snapshotDown.edges) {
+                    out.writeInt(e);
+                }
+            }
+            Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        }
+    }
+
+    /**
+     * Read a graph written by {@link #save(File)}.
+     */
+    public static CompactLineageGraph load(File file) throws IOException {
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file), 1 << 16))) {
+            if (in.readInt() != MAGIC || in.readByte() != VERSION) {
+                throw new IOException("unknown lineage graph snapshot format " + file);
+            }
+            CompactLineageGraph graph = new CompactLineageGraph(in.readBoolean());
+            int n = in.readInt();
+            Vertex.Type[] values = Vertex.Type.values();
+            // snapshot vertices keep their ids, the edges refer to them
+            for (int v = 0; v < n; v++) {
+                String label = in.readUTF();
+                graph.addVertex(label, values[in.readByte()]);
+            }
+            for (int v = 0; v < n; v++) {
+                int table = graph.tableOf(v);
+                graph.tables[v] = table;
+            }
+            int[] offsets = new int[graph.size + 1];
+            int[] edges = new int[in.readInt()];
+            for (int i = 0; i <= n; i++) {
+                offsets[i] = in.readInt();
+            }
+            // table vertices missing from the snapshot were registered after it and have no edges
+            Arrays.fill(offsets, n + 1, offsets.length, offsets[n]);
+            for (int i = 0; i < edges.length; i++) {
+                edges[i] = in.readInt();
+            }
+            graph.down = new Csr(offsets, edges);
+            graph.up = graph.down.transpose(graph.size);
+            LOG.info("load lineage graph snapshot " + file + ",vertices:" + graph.size + ",edges:" + edges.length);
+            return graph;
+        }
+    }
+
+    private Set<String> closure(String label, int depth, boolean upward) {
+        lock.readLock().lock();
+        try {
+            Integer id = ids.get(label);
+            Set<String> result = Sets.newLinkedHashSet();
+            if (Objects.isNull(id)) return result;
+            IntList start = new IntList();
+            start.add(id);
+            BitSet seen = traverse(start, depth, upward);
+            seen.clear(id);
+            for (int v = seen.nextSetBit(0); v >= 0; v = seen.nextSetBit(v + 1)) {
+                result.add(labels[v]);
+            }
+            return result;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Breadth first search from the start vertices, returning every vertex reached including them.
+     */
+    private BitSet traverse(IntList start, int depth, boolean upward) {
+        Csr base = upward ? up : down;
+        IntList[] delta = upward ? deltaUp : deltaDown;
+        BitSet seen = new BitSet(size);
+        IntList frontier = new IntList();
+        for (int i = 0; i < start.size; i++) {
+            seen.set(start.values[i]);
+            frontier.add(start.values[i]);
+        }
+        for (int d = 0; frontier.size > 0 && (depth <= 0 || d < depth); d++) {
+            IntList next = new IntList();
+            for (int i = 0; i < frontier.size; i++) {
+                int v = frontier.values[i];
+                base.visit(v, seen, next);
+                if (v < delta.length && Objects.nonNull(delta[v])) delta[v].visit(seen, next);
+            }
+            frontier = next;
+        }
+        return seen;
+    }
+
+    private int vertexId(String label, Vertex.Type type) {
+        Integer id = ids.get(label);
+        if (Objects.nonNull(id)) return id;
+        int v = addVertex(label, type);
+        // resolved first, registering the table may grow the arrays
+        int table = tableOf(v);
+        tables[v] = table;
+        return v;
+    }
+
+    /**
+     * Register a vertex as its own table, {@link #tableOf(int)} resolves the real one.
+     */
+    private int addVertex(String label, Vertex.Type type) {
+        if (size == labels.length) {
+            labels = Arrays.copyOf(labels, size * 2);
+            types = Arrays.copyOf(types, size * 2);
+            tables = Arrays.copyOf(tables, size * 2);
+        }
+        int v = size++;
+        labels[v] = label;
+        types[v] = (byte) type.ordinal();
+        tables[v] = v;
+        ids.put(label, v);
+        return v;
+    }
+
+    /**
+     * Id of the table vertex of a column, registering the table when it is not known yet.
+     */
+    private int tableOf(int v) {
+        if (types[v] != Vertex.Type.COLUMN.ordinal()) return v;
+        int dot = labels[v].lastIndexOf('.');
+        return dot > 0 ? vertexId(labels[v].substring(0, dot), Vertex.Type.TABLE) : v;
+    }
+
+    private void addDelta(int source, int target) {
+        if (deltaSize == deltaSources.length) {
+            deltaSources = Arrays.copyOf(deltaSources, deltaSize * 2);
+            deltaTargets = Arrays.copyOf(deltaTargets, deltaSize * 2);
+        }
+        deltaSources[deltaSize] = source;
+        deltaTargets[deltaSize] = target;
+        deltaSize++;
+        if (size > deltaDown.length) {
+            deltaDown = Arrays.copyOf(deltaDown, labels.length);
+            deltaUp = Arrays.copyOf(deltaUp, labels.length);
+        }
+        append(deltaDown, source, target);
+        append(deltaUp, target, source);
+    }
+
+    private static void append(IntList[] adjacency, int from, int to) {
+        if (Objects.isNull(adjacency[from])) adjacency[from] = new IntList();
+        adjacency[from].add(to);
+    }
+
+    /**
+     * Merge the delta into the compacted adjacency.
+     */
+    private void compact() {
+        int baseEdges = down.edges.length;
+        int[] sources = new int[baseEdges + deltaSize];
+        int[] targets = new int[baseEdges + deltaSize];
+        int n = 0;
+        for (int v = 0; v < down.vertices(); v++) {
+            for (int i = down.offset(v); i < down.offset(v + 1); i++) {
+                sources[n] = v;
+                targets[n++] = down.edges[i];
+            }
+        }
+        System.arraycopy(deltaSources, 0, sources, n, deltaSize);
+        System.arraycopy(deltaTargets, 0, targets, n, deltaSize);
+        down = Csr.build(size, sources, targets, n + deltaSize);
+        up = down.transpose(size);
+        deltaSize = 0;
+        deltaDown = new IntList[labels.length];
+        deltaUp = new IntList[labels.length];
+    }
+
+    /**
+     * Compressed sparse rows: neighbours of v are edges[offsets[v]..offsets[v+1]).
+     */
+    private static final class Csr {
+        static final Csr EMPTY = new Csr(new int[]{0}, new int[0]);
+
+        final int[] offsets;
+        final int[] edges;
+
+        Csr(int[] offsets, int[] edges) {
+            this.offsets = offsets;
+            this.edges = edges;
+        }
+
+        int vertices() {
+            return offsets.length - 1;
+        }
+
+        int offset(int v) {
+            return v < offsets.length ? offsets[v] : edges.length;
+        }
+
+        void visit(int v, BitSet seen, IntList next) {
+            if (v >= vertices()) return;
+            for (int i = offsets[v]; i < offsets[v + 1]; i++) {
+                int n = edges[i];
+                if (!seen.get(n)) {
+                    seen.set(n);
+                    next.add(n);
+                }
+            }
+        }
+
+        /**
+         * Build from pairs, dropping duplicates.
+         */
+        static Csr build(int vertices, int[] from, int[] to, int count) {
+            long[] keys = new long[count];
+            for (int i = 0; i < count; i++) {
+                keys[i] = ((long) from[i] << 32) | (to[i] & 0xFFFFFFFFL);
+            }
+            Arrays.sort(keys);
+            int unique = 0;
+            for (int i = 0; i < count; i++) {
+                if (i == 0 || keys[i] != keys[i - 1]) keys[unique++] = keys[i];
+            }
+            int[] offsets = new int[vertices + 1];
+            int[] edges = new int[unique];
+            for (int i = 0; i < unique; i++) {
+                offsets[(int) (keys[i] >>> 32) + 1]++;
+                edges[i] = (int) keys[i];
+            }
+            for (int v = 0; v < vertices; v++) {
+                offsets[v + 1] += offsets[v];
+            }
+            return new Csr(offsets, edges);
+        }
+
+        Csr transpose(int vertices) {
+            int[] reversedOffsets = new int[vertices + 1];
+            for (int e : edges) {
+                reversedOffsets[e + 1]++;
+            }
+            for (int v = 0; v < vertices; v++) {
+                reversedOffsets[v + 1] += reversedOffsets[v];
+            }
+            int[] fill = Arrays.copyOf(reversedOffsets, vertices);
+            int[] reversed = new int[edges.length];
+            for (int v = 0; v < vertices(); v++) {
+                for (int i = offsets[v]; i < offsets[v + 1]; i++) {
+                    reversed[fill[edges[i]]++] = v;
+                }
+            }
+            return new Csr(reversedOffsets, reversed);
+        }
+    }
+
+    private static final class IntList {
+        int[] values = new int[16];
+        int size = 0;
+
+        void add(int v) {
+            if (size == values.length) values = Arrays.copyOf(values, size * 2);
+            values[size++] = v;
+        }
+
+        void visit(BitSet seen, IntList next) {
+            for (int i = 0; i < size; i++) {
+                int n = values[i];
+                if (!seen.get(n)) {
+                    seen.set(n);
+                    next.add(n);
+                }
+            }
+        }
+    }
+}
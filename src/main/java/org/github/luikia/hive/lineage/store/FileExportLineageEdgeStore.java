@@ -0,0 +1,180 @@
+package org.github.luikia.hive.lineage.store;
+
+import org.apache.commons.io.output.CountingOutputStream;
+import org.apache.commons.lang3.StringUtils;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.github.luikia.hive.lineage.Edge;
+import org.github.luikia.hive.lineage.EdgeCodec;
+import org.github.luikia.hive.lineage.LineageEdgeStore;
+import org.github.luikia.hive.lineage.LineageStoreException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Objects;
+import java.util.UUID;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Appends edges to gzip compressed files through the Hadoop FileSystem api,
+ * so the directory can be local (file://) or on HDFS. Files are rolled by size and age;
+ * a file is written with a .tmp suffix and renamed once complete, only complete files
+ * are picked up by {@link Neo4jBulkLoader}. A .tmp file left behind by a process that died, or by a
+ * write that failed, is renamed as it is: every block flushed before is complete and the loader stops
+ * at the torn one. Failed writes rename their file right away, dead processes leave it to the next
+ * init() on the directory once it is older than hive.lineage.export.recover.age.ms.
+ * <p>
+ * A file is a header (magic, version) followed by one {@link EdgeCodec} block per store call.
+ */
+public class FileExportLineageEdgeStore extends LineageEdgeStore {
+    private static final Logger LOG = LoggerFactory.getLogger(FileExportLineageEdgeStore.class);
+
+    static final int MAGIC = 0x4C4E4758;
+
+    static final byte VERSION = 1;
+
+    static final String SUFFIX = ".lineage.gz";
+
+    private static final String TMP_SUFFIX = ".tmp";
+
+    private FileSystem fs;
+    private Path dir;
+    private long rollBytes;
+    private long rollIntervalMs;
+    private int bufferBytes;
+    private long recoverAgeMs;
+
+    private Path current;
+    private CountingOutputStream counter;
+    private DataOutputStream out;
+    private long openedAt;
+
+    @Override
+    public Collection<String> getConfPrefixes() {
+        return Collections.singletonList("hive.lineage.export.");
+    }
+
+    @Override
+    public void init(Configuration conf) {
+        String path = conf.getTrimmed("hive.lineage.export.dir");
+        if (StringUtils.isEmpty(path)) {
+            throw new IllegalArgumentException("hive.lineage.export.dir is not set");
+        }
+        this.rollBytes = conf.getLong("hive.lineage.export.roll.bytes", 128L * 1024 * 1024);
+        this.rollIntervalMs = conf.getLong("hive.lineage.export.roll.interval.ms", 3600000L);
+        this.bufferBytes = conf.getInt("hive.lineage.export.buffer.bytes", 64 * 1024);
+        // a live writer rolls before it writes once its file is older than the roll interval, so twice that is safe
+        this.recoverAgeMs = conf.getLong("hive.lineage.export.recover.age.ms", 2 * rollIntervalMs);
+        try {
+            this.dir = new Path(path);
+            this.fs = dir.getFileSystem(conf);
+            fs.mkdirs(dir);
+            recover();
+        } catch (IOException ex) {
+            throw new LineageStoreException("open lineage export dir error,dir:" + path, ex);
+        }
+    }
+
+    @Override
+    public synchronized void store(List<Edge> edges) {
+        try {
+            if (Objects.nonNull(out) && System.currentTimeMillis() - openedAt >= rollIntervalMs) {
+                roll();
+            }
+            if (Objects.isNull(out)) {
+                open();
+            }
+            EdgeCodec.write(out, edges);
+            // push the block through gzip, a recovered .tmp file is loaded up to here
+            out.flush();
+            if (counter.getByteCount() >= rollBytes) {
+                roll();
+            }
+        } catch (IOException ex) {
+            closeQuietly();
+            publishQuietly(current);
+            throw new LineageStoreException("write lineage export file error,file:" + current, ex);
+        }
+    }
+
+    @Override
+    public synchronized void close() {
+        try {
+            if (Objects.nonNull(out)) roll();
+        } catch (IOException ex) {
+            LOG.error("close lineage export file error,file:" + current, ex);
+        }
+    }
+
+    private void open() throws IOException {
+        openedAt = System.currentTimeMillis();
+        current = new Path(dir, "lineage-" + openedAt + "-" + UUID.randomUUID() + SUFFIX + TMP_SUFFIX);
+        counter = new CountingOutputStream(fs.create(current, false));
+        out = new DataOutputStream(new BufferedOutputStream(new GZIPOutputStream(counter, bufferBytes, true), bufferBytes));
+        out.writeInt(MAGIC);
+        out.writeByte(VERSION);
+    }
+
+    /**
+     * Finish the current file and make it visible to the loader.
+     */
+    private void roll() throws IOException {
+        Path tmp = current;
+        out.close();
+        out = null;
+        String name = tmp.getName();
+        Path done = new Path(dir, name.substring(0, name.length() - TMP_SUFFIX.length()));
+        if (!fs.rename(tmp, done)) {
+            if (!fs.exists(tmp)) {
+                LOG.warn("lineage export file already recovered by another process,file:" + tmp);
+                return;
+            }
+            throw new IOException("rename " + tmp + " to " + done + " failed");
+        }
+    }
+
+    /**
+     * Rename .tmp files nobody has written to for recoverAgeMs.
+     */
+    private void recover() throws IOException {
+        long now = System.currentTimeMillis();
+        for (FileStatus status : fs.listStatus(dir)) {
+            if (status.isFile() && status.getPath().getName().endsWith(SUFFIX + TMP_SUFFIX)
+                    && now - status.getModificationTime() >= recoverAgeMs) {
+                LOG.info("recover lineage export file " + status.getPath());
+                publishQuietly(status.getPath());
+            }
+        }
+    }
+
+    private void publishQuietly(Path tmp) {
+        if (Objects.isNull(tmp)) return;
+        String name = tmp.getName();
+        Path done = new Path(dir, name.substring(0, name.length() - TMP_SUFFIX.length()));
+        try {
+            if (!fs.rename(tmp, done)) {
+                LOG.warn("rename lineage export file " + tmp + " to " + done + " failed,left for recovery");
+            }
+        } catch (IOException ex) {
+            LOG.warn("rename lineage export file " + tmp + " to " + done + " failed,left for recovery", ex);
+        }
+    }
+
+    private void closeQuietly() {
+        if (Objects.isNull(out)) return;
+        try {
+            out.close();
+        } catch (IOException ex) {
+            LOG.warn("close lineage export file error,file:" + current, ex);
+        }
+        out = null;
+    }
+}
@@ -0,0 +1,73 @@
+package org.github.luikia.hive.lineage.store;
+
+import com.google.gson.stream.JsonWriter;
+import org.apache.commons.io.output.CountingOutputStream;
+import org.apache.http.entity.AbstractHttpEntity;
+import org.apache.http.entity.ContentType;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Http entity that writes json straight to the connection,
+ * without building a json tree or a request string first.
+ */
+class JsonStreamEntity extends AbstractHttpEntity {
+
+    interface Body {
+        void write(JsonWriter writer) throws IOException;
+    }
+
+    private final Body body;
+
+    private long bytesWritten;
+
+    JsonStreamEntity(Body body) {
+        this.body = body;
+        setContentType(ContentType.APPLICATION_JSON.toString());
+        setChunked(true);
+    }
+
+    @Override
+    public boolean isRepeatable() {
+        return true;
+    }
+
+    @Override
+    public long getContentLength() {
+        return -1;
+    }
+
+    @Override
+    public InputStream getContent() throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        writeTo(out);
+        return new ByteArrayInputStream(out.toByteArray());
+    }
+
+    @Override
+    public void writeTo(OutputStream out) throws IOException {
+        CountingOutputStream counter = new CountingOutputStream(out);
+        JsonWriter writer = new JsonWriter(new OutputStreamWriter(counter, StandardCharsets.UTF_8));
+        body.write(writer);
+        writer.flush();
+        bytesWritten = counter.getByteCount();
+    }
+
+    /**
+     * Size of the body written by the last writeTo call.
+     */
+    long getBytesWritten() {
+        return bytesWritten;
+    }
+
+    @Override
+    public boolean isStreaming() {
+        return false;
+    }
+}
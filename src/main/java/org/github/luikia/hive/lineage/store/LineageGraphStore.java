@@ -0,0 +1,130 @@
+package org.github.luikia.hive.lineage.store;
+
+import com.google.common.collect.Maps;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import org.apache.commons.lang3.StringUtils;
+import org.apache.hadoop.conf.Configuration;
+import org.github.luikia.hive.lineage.Edge;
+import org.github.luikia.hive.lineage.LineageEdgeStore;
+import org.github.luikia.hive.lineage.LineageStoreException;
+import org.github.luikia.hive.lineage.graph.CompactLineageGraph;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Keeps a {@link CompactLineageGraph} of everything stored by this process up to date,
+ * for traversals inside HiveServer2. The graph starts from the snapshot file when one
+ * is configured and is written back to it periodically and on close.
+ * <p>
+ * The graph is not read back from Neo4j or the other stores: it only holds what this process
+ * stored since the snapshot was first written, so queries miss lineage written by other
+ * HiveServer2 instances or before the store was configured. Seed it by applying edges from
+ * the backend to {@link CompactLineageGraph#apply} when that matters.
+ */
+public class LineageGraphStore extends LineageEdgeStore {
+    private static final Logger LOG = LoggerFactory.getLogger(LineageGraphStore.class);
+
+    /**
+     * Stores configured with the same snapshot share one graph.
+     */
+    private static final Map<String, CompactLineageGraph> GRAPHS = Maps.newHashMap();
+
+    /**
+     * Periodic snapshots are written here, off the threads storing lineage.
+     */
+    private static final ExecutorService SNAPSHOTS = Executors.newSingleThreadExecutor(
+            new ThreadFactoryBuilder().setDaemon(true).setNameFormat("lineage-graph-snapshot-%d").build());
+
+    private CompactLineageGraph graph;
+    private File snapshot;
+    private long snapshotIntervalMs;
+    private volatile long lastSnapshot;
+    private final AtomicBoolean saving = new AtomicBoolean();
+
+    @Override
+    public Collection<String> getConfPrefixes() {
+        return Collections.singletonList("hive.lineage.graph.");
+    }
+
+    @Override
+    public void init(Configuration conf) {
+        String path = conf.getTrimmed("hive.lineage.graph.snapshot", "");
+        this.snapshot = StringUtils.isEmpty(path) ? null : new File(path).getAbsoluteFile();
+        this.snapshotIntervalMs = conf.getLong("hive.lineage.graph.snapshot.interval.ms", 600000L);
+        this.lastSnapshot = System.currentTimeMillis();
+        this.graph = getGraph(conf);
+    }
+
+    /**
+     * The graph shared by stores with this configuration, loaded from its snapshot on first use.
+     *
+     * @throws LineageStoreException if the graph of the snapshot was built with another predicates setting
+     */
+    public static CompactLineageGraph getGraph(Configuration conf) {
+        String path = conf.getTrimmed("hive.lineage.graph.snapshot", "");
+        boolean predicates = conf.getBoolean("hive.lineage.graph.predicates", false);
+        synchronized (GRAPHS) {
+            CompactLineageGraph g = GRAPHS.get(path);
+            if (Objects.isNull(g)) {
+                File file = new File(path);
+                try {
+                    g = StringUtils.isNotEmpty(path) && file.exists()
+                            ? CompactLineageGraph.load(file)
+                            : new CompactLineageGraph(predicates);
+                } catch (IOException ex) {
+                    throw new LineageStoreException("load lineage graph snapshot error,file:" + path, ex);
+                }
+                GRAPHS.put(path, g);
+            }
+            if (g.isPredicates() != predicates) {
+                throw new LineageStoreException("lineage graph snapshot " + path + " holds predicates=" + g.isPredicates()
+                        + ",but hive.lineage.graph.predicates=" + predicates + ",remove the snapshot to rebuild it");
+            }
+            return g;
+        }
+    }
+
+    @Override
+    public void store(List<Edge> edges) {
+        graph.apply(edges);
+        if (Objects.nonNull(snapshot) && snapshotIntervalMs > 0
+                && System.currentTimeMillis() - lastSnapshot >= snapshotIntervalMs && saving.compareAndSet(false, true)) {
+            lastSnapshot = System.currentTimeMillis();
+            SNAPSHOTS.execute(() -> {
+                try {
+                    saveSnapshot();
+                } finally {
+                    saving.set(false);
+                }
+            });
+        }
+    }
+
+    @Override
+    public void close() {
+        if (Objects.nonNull(snapshot)) saveSnapshot();
+    }
+
+    public CompactLineageGraph getGraph() {
+        return graph;
+    }
+
+    private void saveSnapshot() {
+        try {
+            graph.save(snapshot);
+        } catch (IOException ex) {
+            LOG.error("save lineage graph snapshot error,file:" + snapshot, ex);
+        }
+    }
+}
@@ -0,0 +1,569 @@
+package org.github.luikia.hive.lineage.store;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
+import org.apache.commons.io.input.CountingInputStream;
+import org.apache.commons.lang3.StringUtils;
+import org.apache.hadoop.conf.Configuration;
+import org.github.luikia.hive.lineage.Edge;
+import org.github.luikia.hive.lineage.LineageEdgeStore;
+import org.github.luikia.hive.lineage.LineageStoreException;
+import org.github.luikia.hive.lineage.Vertex;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.*;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * Lineage store on local disk, for edge nodes without Neo4j and for tests.
+ * <p>
+ * Vertices and strings (expr, hql) are kept in append-only dictionaries and
+ * edges refer to them by int id in an append-only edge log. Edges with the same
+ * type, expr, hql and sources are merged in memory; the log is compacted to one
+ * record per merged edge once it holds too many partial records.
+ */
+public class LocalLineageEdgeStore extends LineageEdgeStore {
+    private static final Logger LOG = LoggerFactory.getLogger(LocalLineageEdgeStore.class);
+
+    private static final int MAGIC = 0x4C4E4147;
+
+    private static final byte VERSION = 1;
+
+    private static final String VERTEX_DICT = "vertices.dict";
+
+    private static final String STRING_DICT = "strings.dict";
+
+    private static final String EDGE_LOG = "edges.log";
+
+    /**
+     * Stores configured with the same dir share one graph.
+     */
+    private static final Map<File, LocalGraph> GRAPHS = Maps.newHashMap();
+
+    private LocalGraph graph;
+
+    @Override
+    public Collection<String> getConfPrefixes() {
+        return Collections.singletonList("hive.lineage.local.");
+    }
+
+    @Override
+    public void init(Configuration conf) {
+        String dir = conf.getTrimmed("hive.lineage.local.dir");
+        if (StringUtils.isEmpty(dir)) {
+            throw new IllegalArgumentException("hive.lineage.local.dir is not set");
+        }
+        File file = new File(dir).getAbsoluteFile();
+        synchronized (GRAPHS) {
+            LocalGraph g = GRAPHS.get(file);
+            if (Objects.isNull(g)) {
+                try {
+                    g = new LocalGraph(file, conf.getInt("hive.lineage.local.compact.min.records", 10000),
+                            conf.getFloat("hive.lineage.local.compact.ratio", 2.0f));
+                } catch (IOException ex) {
+                    throw new LineageStoreException("open local lineage store error,dir:" + dir, ex);
+                }
+                GRAPHS.put(file, g);
+            }
+            g.refs++;
+            this.graph = g;
+        }
+    }
+
+    @Override
+    public void store(List<Edge> edges) {
+        try {
+            graph.add(edges);
+        } catch (IOException | UncheckedIOException ex) {
+            throw new LineageStoreException("write local lineage store error", ex);
+        }
+    }
+
+    @Override
+    public void close() {
+        synchronized (GRAPHS) {
+            if (Objects.isNull(graph) || --graph.refs > 0) return;
+            GRAPHS.remove(graph.dir);
+            graph.close();
+        }
+    }
+
+    /**
+     * Vertices the given column or table label directly depends on.
+     */
+    public Set<Vertex> getSources(String label) {
+        return graph.neighbours(label, true);
+    }
+
+    /**
+     * Vertices that directly depend on the given column or table label.
+     */
+    public Set<Vertex> getTargets(String label) {
+        return graph.neighbours(label, false);
+    }
+
+    /**
+     * Known vertices of a table, the table itself and its columns.
+     */
+    public Set<Vertex> getVertices(String db, String table) {
+        return graph.vertices(db + "." + table);
+    }
+
+    /**
+     * Edges reading from or writing to a table.
+     */
+    public List<Edge> getEdges(String db, String table) {
+        return graph.edges(db + "." + table);
+    }
+
+    private static final class LocalGraph {
+        private final File dir;
+        private final int compactMinRecords;
+        private final float compactRatio;
+        private final ReadWriteLock lock = new ReentrantReadWriteLock();
+        private int refs = 0;
+
+        private final List<Vertex> vertices = Lists.newArrayList();
+        private final Map<String, Integer> vertexIds = Maps.newHashMap();
+        private final List<String> strings = Lists.newArrayList();
+        private final Map<String, Integer> stringIds = Maps.newHashMap();
+        private final Map<EdgeKey, Set<Integer>> edges = Maps.newLinkedHashMap();
+        private final Map<Integer, Set<Integer>> upstream = Maps.newHashMap();
+        private final Map<Integer, Set<Integer>> downstream = Maps.newHashMap();
+        private final Map<String, Set<Integer>> tableVertices = Maps.newHashMap();
+        private final Map<String, Set<EdgeKey>> tableEdges = Maps.newHashMap();
+        private long logRecords = 0;
+
+        private DataOutputStream vertexOut;
+        private DataOutputStream stringOut;
+        private DataOutputStream edgeOut;
+
+        LocalGraph(File dir, int compactMinRecords, float compactRatio) throws IOException {
+            this.dir = dir;
+            this.compactMinRecords = compactMinRecords;
+            this.compactRatio = compactRatio;
+            if (!dir.isDirectory() && !dir.mkdirs()) {
+                throw new IOException("can not create dir " + dir);
+            }
+            load(VERTEX_DICT, in -> addVertex(Vertex.of(in.readUTF(), Vertex.Type.values()[in.readByte()], in.readUTF())));
+            load(STRING_DICT, in -> addString(readString(in)));
+            load(EDGE_LOG, in -> {
+                Edge.Type type = Edge.Type.values()[in.readByte()];
+                int expr = in.readInt();
+                int hql = in.readInt();
+                int[] sources = readIds(in);
+                int[] targets = readIds(in);
+                if (validIds(sources) && validIds(targets) && expr < strings.size() && hql < strings.size()) {
+                    addEdge(new EdgeKey(type, expr, hql, sources), targets);
+                    logRecords++;
+                }
+            });
+            this.vertexOut = open(VERTEX_DICT);
+            this.stringOut = open(STRING_DICT);
+            this.edgeOut = open(EDGE_LOG);
+        }
+
+        void add(List<Edge> input) throws IOException {
+            lock.writeLock().lock();
+            try {
+                // memory only follows what reached disk, a failed write leaves both as they were
+                Batch batch = new Batch();
+                for (Edge edge : input) {
+                    int[] sources = edge.getSources().stream().mapToInt(batch::vertexId).sorted().toArray();
+                    EdgeKey key = new EdgeKey(edge.getType(), batch.stringId(edge.getExpr()), batch.stringId(edge.getHql()), sources);
+                    batch.addEdge(key, edge.getTargets().stream().mapToInt(batch::vertexId).toArray());
+                }
+                if (batch.edges.isEmpty()) return;
+                append(batch);
+                batch.apply();
+                if (logRecords > compactMinRecords && logRecords > edges.size() * compactRatio) {
+                    compact();
+                }
+            } finally {
+                lock.writeLock().unlock();
+            }
+        }
+
+        Set<Vertex> neighbours(String label, boolean up) {
+            lock.readLock().lock();
+            try {
+                Integer id = vertexIds.get(label);
+                Set<Vertex> result = Sets.newLinkedHashSet();
+                if (Objects.isNull(id)) return result;
+                Set<Integer> ids = (up ? upstream : downstream).get(id);
+                if (Objects.nonNull(ids)) ids.forEach(i -> result.add(vertices.get(i)));
+                return result;
+            } finally {
+                lock.readLock().unlock();
+            }
+        }
+
+        Set<Vertex> vertices(String table) {
+            lock.readLock().lock();
+            try {
+                Set<Vertex> result = Sets.newLinkedHashSet();
+                tableVertices.getOrDefault(table, Collections.emptySet()).forEach(i -> result.add(vertices.get(i)));
+                return result;
+            } finally {
+                lock.readLock().unlock();
+            }
+        }
+
+        List<Edge> edges(String table) {
+            lock.readLock().lock();
+            try {
+                List<Edge> result = Lists.newArrayList();
+                for (EdgeKey key : tableEdges.getOrDefault(table, Collections.emptySet())) {
+                    Set<Vertex> sources = Sets.newLinkedHashSet();
+                    Set<Vertex> targets = Sets.newLinkedHashSet();
+                    Arrays.stream(key.sources).forEach(i -> sources.add(vertices.get(i)));
+                    edges.get(key).forEach(i -> targets.add(vertices.get(i)));
+                    result.add(Edge.of(sources, targets, strings.get(key.expr), strings.get(key.hql), key.type));
+                }
+                return result;
+            } finally {
+                lock.readLock().unlock();
+            }
+        }
+
+        void close() {
+            lock.writeLock().lock();
+            try {
+                for (Closeable c : new Closeable[]{edgeOut, stringOut, vertexOut}) {
+                    try {
+                        c.close();
+                    } catch (IOException ex) {
+                        LOG.error("close local lineage store error", ex);
+                    }
+                }
+            } finally {
+                lock.writeLock().unlock();
+            }
+        }
+
+        private void addEdge(EdgeKey key, int[] targets) {
+            Set<Integer> known = edges.computeIfAbsent(key, k -> Sets.newLinkedHashSet());
+            for (int t : targets) {
+                known.add(t);
+                tableEdges.computeIfAbsent(tableOf(t), k -> Sets.newHashSet()).add(key);
+                for (int s : key.sources) {
+                    upstream.computeIfAbsent(t, k -> Sets.newLinkedHashSet()).add(s);
+                    downstream.computeIfAbsent(s, k -> Sets.newLinkedHashSet()).add(t);
+                }
+            }
+            for (int s : key.sources) {
+                tableEdges.computeIfAbsent(tableOf(s), k -> Sets.newHashSet()).add(key);
+            }
+        }
+
+        private int addVertex(Vertex v) {
+            int id = vertices.size();
+            vertices.add(v);
+            vertexIds.put(v.getLabel(), id);
+            tableVertices.computeIfAbsent(v.getDatabase() + "." + v.getTable(), k -> Sets.newLinkedHashSet()).add(id);
+            return id;
+        }
+
+        private int addString(String s) {
+            int id = strings.size();
+            strings.add(s);
+            stringIds.put(s, id);
+            return id;
+        }
+
+        private String tableOf(int vertex) {
+            Vertex v = vertices.get(vertex);
+            return v.getDatabase() + "." + v.getTable();
+        }
+
+        private boolean validIds(int[] ids) {
+            return Arrays.stream(ids).allMatch(i -> i >= 0 && i < vertices.size());
+        }
+
+        /**
+         * Append the records of a batch to the dictionaries and the edge log, dictionaries first
+         * so edge records never refer to ids missing on disk. On failure the files are cut back.
+         */
+        private void append(Batch batch) throws IOException {
+            long[] lengths = {length(VERTEX_DICT), length(STRING_DICT), length(EDGE_LOG)};
+            try {
+                batch.vertexBuf.writeTo(vertexOut);
+                vertexOut.flush();
+                batch.stringBuf.writeTo(stringOut);
+                stringOut.flush();
+                ByteArrayOutputStream edgeBuf = new ByteArrayOutputStream();
+                DataOutputStream out = new DataOutputStream(edgeBuf);
+                for (Map.Entry<EdgeKey, Set<Integer>> e : batch.edges.entrySet()) {
+                    writeEdge(out, e.getKey(), e.getValue().stream().mapToInt(Integer::intValue).toArray());
+                }
+                edgeBuf.writeTo(edgeOut);
+                edgeOut.flush();
+            } catch (IOException ex) {
+                truncate(lengths);
+                throw ex;
+            }
+        }
+
+        /**
+         * Drop whatever a failed append left behind and reopen the files.
+         */
+        private void truncate(long[] lengths) {
+            String[] names = {VERTEX_DICT, STRING_DICT, EDGE_LOG};
+            for (Closeable c : new Closeable[]{vertexOut, stringOut, edgeOut}) {
+                try {
+                    c.close();
+                } catch (IOException ex) {
+                    // the buffered tail is cut off below anyway
+                }
+            }
+            try {
+                for (int i = 0; i < names.length; i++) {
+                    try (RandomAccessFile raf = new RandomAccessFile(new File(dir, names[i]), "rw")) {
+                        raf.setLength(lengths[i]);
+                    }
+                }
+            } catch (IOException ex) {
+                LOG.error("truncate local lineage store error,dir:" + dir, ex);
+            } finally {
+                try {
+                    this.vertexOut = open(VERTEX_DICT);
+                    this.stringOut = open(STRING_DICT);
+                    this.edgeOut = open(EDGE_LOG);
+                } catch (IOException ex) {
+                    LOG.error("reopen local lineage store error,dir:" + dir, ex);
+                }
+            }
+        }
+
+        private long length(String name) {
+            return new File(dir, name).length();
+        }
+
+        /**
+         * Rewrite the edge log with one record per merged edge.
+         */
+        private void compact() throws IOException {
+            File tmp = new File(dir, EDGE_LOG + ".tmp");
+            try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)))) {
+                writeHeader(out);
+                for (Map.Entry<EdgeKey, Set<Integer>> e : edges.entrySet()) {
+                    writeEdge(out, e.getKey(), e.getValue().stream().mapToInt(Integer::intValue).toArray());
+                }
+            }
+            edgeOut.close();
+            try {
+                Files.move(tmp.toPath(), new File(dir, EDGE_LOG).toPath(),
+                        StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+                LOG.info("compact local lineage edge log from " + logRecords + " to " + edges.size() + " records");
+                logRecords = edges.size();
+            } finally {
+                // the old log is kept and appended to if the move failed
+                Files.deleteIfExists(tmp.toPath());
+                edgeOut = open(EDGE_LOG);
+            }
+        }
+
+        /**
+         * Records of one add call. Ids of new vertices and strings are taken after the ones in
+         * memory but only become visible through apply() once the records are on disk.
+         */
+        private final class Batch {
+            private final List<Vertex> vertices = Lists.newArrayList();
+            private final Map<String, Integer> vertexIds = Maps.newHashMap();
+            private final List<String> strings = Lists.newArrayList();
+            private final Map<String, Integer> stringIds = Maps.newHashMap();
+            private final Map<EdgeKey, Set<Integer>> edges = Maps.newLinkedHashMap();
+            private final ByteArrayOutputStream vertexBuf = new ByteArrayOutputStream();
+            private final ByteArrayOutputStream stringBuf = new ByteArrayOutputStream();
+
+            int vertexId(Vertex v) {
+                Integer id = LocalGraph.this.vertexIds.get(v.getLabel());
+                if (Objects.isNull(id)) id = vertexIds.get(v.getLabel());
+                if (Objects.nonNull(id)) return id;
+                try {
+                    DataOutputStream out = new DataOutputStream(vertexBuf);
+                    out.writeUTF(v.getLabel());
+                    out.writeByte(v.getType().ordinal());
+                    out.writeUTF(v.getComment());
+                } catch (IOException ex) {
+                    throw new UncheckedIOException(ex);
+                }
+                id = LocalGraph.this.vertices.size() + vertices.size();
+                vertices.add(v);
+                vertexIds.put(v.getLabel(), id);
+                return id;
+            }
+
+            int stringId(String s) {
+                Integer id = LocalGraph.this.stringIds.get(s);
+                if (Objects.isNull(id)) id = stringIds.get(s);
+                if (Objects.nonNull(id)) return id;
+                try {
+                    writeString(new DataOutputStream(stringBuf), s);
+                } catch (IOException ex) {
+                    throw new UncheckedIOException(ex);
+                }
+                id = LocalGraph.this.strings.size() + strings.size();
+                strings.add(s);
+                stringIds.put(s, id);
+                return id;
+            }
+
+            /**
+             * Keep the targets not yet known for the key, a new key is kept even without targets.
+             */
+            void addEdge(EdgeKey key, int[] targets) {
+                Set<Integer> known = LocalGraph.this.edges.get(key);
+                Set<Integer> added = edges.get(key);
+                for (int t : targets) {
+                    if (Objects.nonNull(known) && known.contains(t)) continue;
+                    if (Objects.isNull(added)) {
+                        added = Sets.newLinkedHashSet();
+                        edges.put(key, added);
+                    }
+                    added.add(t);
+                }
+                if (Objects.isNull(known) && Objects.isNull(added)) {
+                    edges.put(key, Sets.newLinkedHashSet());
+                }
+            }
+
+            void apply() {
+                vertices.forEach(LocalGraph.this::addVertex);
+                strings.forEach(LocalGraph.this::addString);
+                edges.forEach((key, targets) -> LocalGraph.this.addEdge(key, targets.stream().mapToInt(Integer::intValue).toArray()));
+                logRecords += edges.size();
+            }
+        }
+
+        /**
+         * Read all records of a file, cutting off a trailing record torn by a crash.
+         */
+        private void load(String name, RecordReader reader) throws IOException {
+            File file = new File(dir, name);
+            if (!file.exists()) return;
+            long good;
+            try (CountingInputStream counter = new CountingInputStream(new BufferedInputStream(new FileInputStream(file)));
+                 DataInputStream in = new DataInputStream(counter)) {
+                if (in.readInt() != MAGIC || in.readByte() != VERSION) {
+                    throw new IOException("unknown local lineage file format " + file);
+                }
+                good = counter.getByteCount();
+                try {
+                    while (true) {
+                        reader.read(in);
+                        good = counter.getByteCount();
+                    }
+                } catch (EOFException ex) {
+                    // end of file, or a torn record after good
+                }
+            } catch (EOFException ex) {
+                good = 0;
+            }
+            if (good < file.length()) {
+                LOG.warn("truncate torn local lineage record,file:" + file + ",offset:" + good);
+                try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+                    raf.setLength(good);
+                }
+            }
+        }
+
+        private DataOutputStream open(String name) throws IOException {
+            File file = new File(dir, name);
+            boolean exists = file.exists() && file.length() > 0;
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file, true)));
+            if (!exists) {
+                writeHeader(out);
+                out.flush();
+            }
+            return out;
+        }
+
+        private static void writeHeader(DataOutputStream out) throws IOException {
+            out.writeInt(MAGIC);
+            out.writeByte(VERSION);
+        }
+
+        private static void writeEdge(DataOutputStream out, EdgeKey key, int[] targets) throws IOException {
+            out.writeByte(key.type.ordinal());
+            out.writeInt(key.expr);
+            out.writeInt(key.hql);
+            writeIds(out, key.sources);
+            writeIds(out, targets);
+        }
+
+        private static void writeIds(DataOutputStream out, int[] ids) throws IOException {
+            out.writeInt(ids.length);
+            for (int id : ids) {
+                out.writeInt(id);
+            }
+        }
+
+        private static int[] readIds(DataInputStream in) throws IOException {
+            int[] ids = new int[in.readInt()];
+            for (int i = 0; i < ids.length; i++) {
+                ids[i] = in.readInt();
+            }
+            return ids;
+        }
+
+        /**
+         * Length-prefixed UTF-8, expressions may exceed the 64k limit of writeUTF.
+         */
+        private static void writeString(DataOutputStream out, String s) throws IOException {
+            byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+            out.writeInt(bytes.length);
+            out.write(bytes);
+        }
+
+        private static String readString(DataInputStream in) throws IOException {
+            byte[] bytes = new byte[in.readInt()];
+            in.readFully(bytes);
+            return new String(bytes, StandardCharsets.UTF_8);
+        }
+    }
+
+    private interface RecordReader {
+        void read(DataInputStream in) throws IOException;
+    }
+
+    private static final class EdgeKey {
+        private final Edge.Type type;
+        private final int expr;
+        private final int hql;
+        private final int[] sources;
+        private final int hash;
+
+        EdgeKey(Edge.Type type, int expr, int hql, int[] sources) {
+            this.type = type;
+            this.expr = expr;
+            this.hql = hql;
+            this.sources = sources;
+            this.hash = Objects.hash(type, expr, hql) * 31 + Arrays.hashCode(sources);
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (this == obj) {
+                return true;
+            }
+            if (!(obj instanceof EdgeKey)) {
+                return false;
+            }
+            EdgeKey key = (EdgeKey) obj;
+            return type == key.type && expr == key.expr && hql == key.hql && Arrays.equals(sources, key.sources);
+        }
+    }
+}
@@ -1,12 +1,22 @@
 package org.github.luikia.hive.lineage.store;
 
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.Lists;
-import com.google.gson.Gson;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
+import com.google.common.hash.Hasher;
+import com.google.common.hash.Hashing;
 import com.google.gson.JsonElement;
-import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import com.google.gson.stream.JsonWriter;
 import org.github.luikia.hive.lineage.Edge;
 import org.github.luikia.hive.lineage.LineageEdgeStore;
+import org.github.luikia.hive.lineage.LineageFingerprints;
+import org.github.luikia.hive.lineage.LineageMetrics;
+import org.github.luikia.hive.lineage.LineageStoreException;
 import org.github.luikia.hive.lineage.Vertex;
 import org.apache.commons.lang3.StringUtils;
 import org.apache.hadoop.conf.Configuration;
@@ -15,25 +25,65 @@ import org.apache.http.HttpHeaders;
 import org.apache.http.HttpResponse;
 import org.apache.http.HttpStatus;
 import org.apache.http.client.HttpClient;
+import org.apache.http.client.params.ClientPNames;
 import org.apache.http.client.methods.HttpPost;
 import org.apache.http.entity.ContentType;
-import org.apache.http.entity.StringEntity;;
+import org.apache.http.impl.client.DefaultConnectionKeepAliveStrategy;
 import org.apache.http.impl.client.DefaultHttpClient;
+import org.apache.http.impl.conn.PoolingClientConnectionManager;
 import org.apache.http.message.BasicHeader;
+import org.apache.http.params.BasicHttpParams;
+import org.apache.http.params.HttpConnectionParams;
+import org.apache.http.params.HttpParams;
 import org.apache.http.util.EntityUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
 import java.util.*;
+import java.util.concurrent.TimeUnit;
 import java.util.stream.Collectors;
 import java.util.stream.Stream;
 
 public class Neo4JLineageEdgeStore extends LineageEdgeStore {
     private static final Logger LOG = LoggerFactory.getLogger(Neo4JLineageEdgeStore.class);
 
-    private static final Gson g = new Gson();
+    private Neo4J client;
 
-    private static Neo4J client;
+    private int batchSize;
+
+    /**
+     * Fingerprints of statements persisted recently. A statement found here only
+     * bumps mtime, so it is skipped until the entry expires.
+     */
+    private Cache<Long, Boolean> written;
+
+    /**
+     * Store each distinct expr and hql once as a node and key DEP relations by their fingerprints.
+     */
+    private boolean hashedExpr;
+
+    /**
+     * Keep lastSeen on the HQL node of every query, set when lineage fingerprinting is on.
+     */
+    private boolean lastSeen;
+
+    /**
+     * Store each edge as one TRANSFORM node linked to its sources and targets
+     * instead of a DEP relation per source and target pair.
+     */
+    private boolean hyperedge;
+
+    /**
+     * Maintain TABLE_DEP relations between source and target tables, counting the distinct queries behind each.
+     */
+    private boolean tableRollup;
+
+    /**
+     * Query fingerprints kept on a TABLE_DEP relation, the oldest are dropped beyond it, 0 keeps all.
+     */
+    private int maxHids;
 
     private static final String DB_TABLE_CQL_FORMAT =
             "MERGE (d:DATABASE{name:$db}) ON CREATE SET d+={name:$db,ctime:timestamp(),mtime:timestamp()} ON MATCH SET d+={mtime:timestamp()} " +
@@ -54,66 +104,308 @@ public class Neo4JLineageEdgeStore extends LineageEdgeStore {
                     "with cs,ct MERGE (cs)-[r:DEP{expr:$expr,hql:$hql}]->(ct) ON CREATE SET r += {expr:$expr,hql:$hql," +
                     "ctime:timestamp(),mtime:timestamp()} ON MATCH SET r += {mtime:timestamp()}";
 
+    private static final String EXPR_CQL_FORMAT =
+            "MERGE (e:EXPR{id:$eid}) ON CREATE SET e+={id:$eid,text:$expr,ctime:timestamp()}";
+
+    private static final String HQL_CQL_FORMAT =
+            "MERGE (q:HQL{id:$hid}) ON CREATE SET q+={id:$hid,name:$hql,ctime:timestamp()}";
+
+    private static final String COL_DEP_COL_HASHED_CQL_FORMAT =
+            "MATCH (cs:COLUMN{label:$slabel}) MATCH (ct:COLUMN{label:$tlabel})" +
+                    "with cs,ct MERGE (cs)-[r:DEP{eid:$eid,hid:$hid}]->(ct) ON CREATE SET r += {eid:$eid,hid:$hid," +
+                    "ctime:timestamp(),mtime:timestamp()} ON MATCH SET r += {mtime:timestamp()}";
+
+    private static final String COL_DEP_TABLE_HASHED_CQL_FORMAT =
+            "MATCH (cs:COLUMN{label:$slabel}) MATCH (ct:TABLE{db:$tdb,name:$ttable})" +
+                    "with cs,ct MERGE (cs)-[r:DEP{eid:$eid,hid:$hid}]->(ct) ON CREATE SET r += {eid:$eid,hid:$hid," +
+                    "ctime:timestamp(),mtime:timestamp()} ON MATCH SET r += {mtime:timestamp()}";
+
+    private static final String TRANSFORM_CQL_FORMAT =
+            "MERGE (x:TRANSFORM{id:$xid}) ON CREATE SET x+={id:$xid,expr:$expr,hql:$hql,ctime:timestamp(),mtime:timestamp()} ON MATCH SET x+={mtime:timestamp()}";
+
+    private static final String TRANSFORM_HASHED_CQL_FORMAT =
+            "MERGE (x:TRANSFORM{id:$xid}) ON CREATE SET x+={id:$xid,eid:$eid,hid:$hid,ctime:timestamp(),mtime:timestamp()} ON MATCH SET x+={mtime:timestamp()}";
+
+    private static final String COL_INPUT_OF_CQL_FORMAT =
+            "MATCH (cs:COLUMN{label:$slabel}) MATCH (x:TRANSFORM{id:$xid}) " +
+                    "with cs,x MERGE (cs)-[r:INPUT_OF]->(x) ON CREATE SET r += {ctime:timestamp(),mtime:timestamp()} ON MATCH SET r += {mtime:timestamp()}";
+
+    private static final String OUTPUT_TO_COL_CQL_FORMAT =
+            "MATCH (x:TRANSFORM{id:$xid}) MATCH (ct:COLUMN{label:$tlabel}) " +
+                    "with x,ct MERGE (x)-[r:OUTPUT_TO]->(ct) ON CREATE SET r += {ctime:timestamp(),mtime:timestamp()} ON MATCH SET r += {mtime:timestamp()}";
+
+    private static final String OUTPUT_TO_TABLE_CQL_FORMAT =
+            "MATCH (x:TRANSFORM{id:$xid}) MATCH (ct:TABLE{db:$tdb,name:$ttable}) " +
+                    "with x,ct MERGE (x)-[r:OUTPUT_TO]->(ct) ON CREATE SET r += {ctime:timestamp(),mtime:timestamp()} ON MATCH SET r += {mtime:timestamp()}";
+
+    private static final String TABLE_DEP_TABLE_CQL_FORMAT =
+            "MATCH (ts:TABLE{db:$sdb,name:$stable}) MATCH (tt:TABLE{db:$tdb,name:$ttable}) " +
+                    "with ts,tt MERGE (ts)-[r:TABLE_DEP]->(tt) ON CREATE SET r += {hids:[],count:0,ctime:timestamp()} " +
+                    "WITH r, $hid IN r.hids AS seen " +
+                    "SET r.count = CASE WHEN seen THEN r.count ELSE coalesce(r.count,0) + 1 END, " +
+                    "r.hids = CASE WHEN seen THEN r.hids ELSE (r.hids + $hid)[-toInteger($maxHids)..] END, " +
+                    "r.columns = toInteger($columns), r.mtime = timestamp(), r.lastSeen = timestamp()";
+
+    /**
+     * Target tables of a query kept on its HQL node, so a heartbeat finds the TABLE_DEP relations it refreshes.
+     */
+    private static final String HQL_TARGET_CQL_FORMAT =
+            "MERGE (q:HQL{id:$hid}) ON CREATE SET q+={id:$hid,name:$hql,ctime:timestamp()} " +
+                    "SET q.targets = CASE WHEN $target IN coalesce(q.targets,[]) THEN q.targets ELSE coalesce(q.targets,[]) + $target END";
+
+    private static final String TABLE_DEP_LAST_SEEN_CQL_FORMAT =
+            "MATCH (q:HQL{id:$hid}) UNWIND coalesce(q.targets,[]) AS target " +
+                    "MATCH (tt:TABLE{db:split(target,'.')[0],name:split(target,'.')[1]}) " +
+                    "MATCH (:TABLE)-[r:TABLE_DEP]->(tt) WHERE $hid IN r.hids SET r.lastSeen = timestamp()";
+
+    private static final String COLUMN_SOURCE = "MATCH (cs:COLUMN{label:$slabel})";
+
+    /**
+     * Sources collapsed to their table by hive.lineage.granularity, same statements matched on the TABLE node.
+     */
+    private static final String TABLE_SOURCE = "MATCH (cs:TABLE{db:$sdb,name:$stable})";
+
+    private static final String TABLE_DEP_COL_CQL_FORMAT = COL_DEP_COL_CQL_FORMAT.replace(COLUMN_SOURCE, TABLE_SOURCE);
+
+    private static final String TABLE_DEP_TABLE_INLINE_CQL_FORMAT = COL_DEP_TABLE_CQL_FORMAT.replace(COLUMN_SOURCE, TABLE_SOURCE);
+
+    private static final String TABLE_DEP_COL_HASHED_CQL_FORMAT = COL_DEP_COL_HASHED_CQL_FORMAT.replace(COLUMN_SOURCE, TABLE_SOURCE);
+
+    private static final String TABLE_DEP_TABLE_HASHED_CQL_FORMAT = COL_DEP_TABLE_HASHED_CQL_FORMAT.replace(COLUMN_SOURCE, TABLE_SOURCE);
+
+    private static final String TABLE_INPUT_OF_CQL_FORMAT = COL_INPUT_OF_CQL_FORMAT.replace(COLUMN_SOURCE, TABLE_SOURCE);
+
+    private static final String HQL_LAST_SEEN_CQL_FORMAT =
+            "MERGE (q:HQL{id:$hid}) ON CREATE SET q+={id:$hid,name:$hql,ctime:timestamp()} SET q.lastSeen=timestamp()";
+
+    @Override
+    public Collection<String> getConfPrefixes() {
+        return ImmutableList.of("hive.lineage.neo4j.", "hive.lineage.fingerprint.enable");
+    }
 
     @Override
     public void init(Configuration conf) {
-        if (Objects.isNull(client)) initCLient(conf);
+        String url = conf.getTrimmed("hive.lineage.neo4j.url");
+        String username = conf.getTrimmed("hive.lineage.neo4j.username");
+        String password = conf.getTrimmed("hive.lineage.neo4j.password");
+        this.client = new Neo4J(url, username, password, conf);
+        this.batchSize = conf.getInt("hive.lineage.neo4j.batch.size", 500);
+        this.hashedExpr = "hashed".equalsIgnoreCase(conf.getTrimmed("hive.lineage.neo4j.expr.mode", "inline"));
+        this.lastSeen = LineageFingerprints.isEnabled(conf);
+        this.hyperedge = "hyperedge".equalsIgnoreCase(conf.getTrimmed("hive.lineage.neo4j.model", "pairwise"));
+        this.tableRollup = conf.getBoolean("hive.lineage.neo4j.table.rollup.enable", false);
+        this.maxHids = Math.max(0, conf.getInt("hive.lineage.neo4j.table.rollup.max.hids", 1000));
+        long cacheSize = conf.getLong("hive.lineage.neo4j.cache.size", 100000L);
+        if (cacheSize > 0) {
+            this.written = CacheBuilder.newBuilder()
+                    .maximumSize(cacheSize)
+                    .expireAfterWrite(conf.getLong("hive.lineage.neo4j.cache.mtime.interval.ms", 3600000L), TimeUnit.MILLISECONDS)
+                    .build();
+        }
     }
 
     @Override
     public void store(List<Edge> edges) {
-        edges.stream()
+        Stream<Neo4jEntity> cqls = edges.stream()
                 .filter(e -> e.getType() == Edge.Type.PROJECTION)
-                .flatMap(this::convertEdgeToCQL)
-                .forEach(client::run);
+                .flatMap(this::convertEdgeToCQL);
+        if (tableRollup) {
+            // idempotent per query, so replays and retries leave count alone and the written cache applies
+            cqls = Stream.concat(cqls, convertTableRollup(edges));
+        }
+        cqls = cqls.filter(e -> Objects.isNull(written) || Objects.isNull(written.getIfPresent(e.fingerprint())));
+        if (lastSeen) {
+            cqls = Stream.concat(cqls, lastSeenCQL(edges.stream().map(Edge::getHql).collect(Collectors.toSet())));
+        }
+        send(cqls);
     }
 
-    private synchronized static void initCLient(Configuration conf) {
-        if (Objects.nonNull(client)) return;
-        String url = conf.getTrimmed("hive.lineage.neo4j.url");
-        String username = conf.getTrimmed("hive.lineage.neo4j.username");
-        String password = conf.getTrimmed("hive.lineage.neo4j.password");
-        client = new Neo4J(url, username, password);
+    @Override
+    public void heartbeat(Collection<String> hqlIds) {
+        Stream<Neo4jEntity> cqls = lastSeenCQL(hqlIds);
+        if (tableRollup) {
+            cqls = Stream.concat(cqls, hqlIds.stream().filter(StringUtils::isNotBlank).map(StringUtils::trim)
+                    .map(hql -> newEntity(TABLE_DEP_LAST_SEEN_CQL_FORMAT, ImmutableMap.of("hid", fingerprint(hql)))));
+        }
+        send(cqls);
+    }
+
+    /**
+     * One TABLE_DEP statement per query, source and target table, carrying how many
+     * column dependencies between the two tables this write contained.
+     */
+    private Stream<Neo4jEntity> convertTableRollup(List<Edge> edges) {
+        Map<List<String>, Integer> pairs = Maps.newLinkedHashMap();
+        for (Edge edge : edges) {
+            if (edge.getType() != Edge.Type.PROJECTION) continue;
+            String hql = StringUtils.trimToEmpty(edge.getHql());
+            for (Vertex s : edge.getSources()) {
+                for (Vertex t : edge.getTargets()) {
+                    pairs.merge(Arrays.asList(hql, s.getDatabase(), s.getTable(), t.getDatabase(), t.getTable()), 1, Integer::sum);
+                }
+            }
+        }
+        List<Neo4jEntity> cqls = Lists.newArrayListWithCapacity(pairs.size());
+        Set<List<String>> targets = Sets.newHashSet();
+        for (Map.Entry<List<String>, Integer> e : pairs.entrySet()) {
+            String hql = e.getKey().get(0);
+            String hid = fingerprint(hql);
+            cqls.add(newEntity(TABLE_DEP_TABLE_CQL_FORMAT, ImmutableMap.<String, String>builder()
+                    .put("hid", hid)
+                    .put("sdb", e.getKey().get(1))
+                    .put("stable", e.getKey().get(2))
+                    .put("tdb", e.getKey().get(3))
+                    .put("ttable", e.getKey().get(4))
+                    .put("columns", String.valueOf(e.getValue()))
+                    .put("maxHids", String.valueOf(maxHids))
+                    .build()));
+            String target = e.getKey().get(3) + "." + e.getKey().get(4);
+            if (lastSeen && StringUtils.isNotEmpty(hql) && targets.add(Arrays.asList(hql, target))) {
+                cqls.add(newEntity(HQL_TARGET_CQL_FORMAT, ImmutableMap.of("hid", hid, "hql", hql, "target", target)));
+            }
+        }
+        return cqls.stream();
+    }
+
+    private Stream<Neo4jEntity> lastSeenCQL(Collection<String> hqlIds) {
+        return hqlIds.stream().filter(StringUtils::isNotBlank).map(StringUtils::trim)
+                .map(hql -> newEntity(HQL_LAST_SEEN_CQL_FORMAT, ImmutableMap.of("hid", fingerprint(hql), "hql", hql)));
     }
 
-    private Stream<Neo4jEntity> convertEdgeToCQL(Edge edge) {
-        List<Neo4jEntity> cqls = Lists.newArrayListWithCapacity(edge.getSources().size() * edge.getTargets().size() + edge.getSources().size() + edge.getTargets().size());
+    /**
+     * Dependency statements MATCH the vertices merged before them and succeed as no-ops when those failed,
+     * so nothing of a call is cached as written unless the whole call succeeded.
+     */
+    private void send(Stream<Neo4jEntity> cqls) {
+        int failed = 0;
+        int sent = 0;
+        List<Neo4jEntity> succeeded = Lists.newArrayList();
+        if (batchSize <= 1) {
+            Iterator<Neo4jEntity> it = cqls.iterator();
+            while (it.hasNext()) {
+                Neo4jEntity e = it.next();
+                sent++;
+                if (client.run(e)) succeeded.add(e);
+                else failed++;
+            }
+        } else {
+            // vertices shared by many edges produce the same statement, send it once per query
+            List<Neo4jEntity> distinct = cqls.distinct().collect(Collectors.toList());
+            sent = distinct.size();
+            for (List<Neo4jEntity> batch : Lists.partition(distinct, batchSize)) {
+                if (client.runBatch(batch)) succeeded.addAll(batch);
+                else failed += batch.size();
+            }
+        }
+        LineageMetrics.get().statements(sent);
+        if (failed > 0) {
+            throw new LineageStoreException("insert neo4j error," + failed + " statements failed");
+        }
+        markWritten(succeeded);
+    }
+
+    private void markWritten(List<Neo4jEntity> entities) {
+        if (Objects.isNull(written)) return;
+        entities.forEach(e -> written.put(e.fingerprint(), Boolean.TRUE));
+    }
+
+    @Override
+    public void close() {
+        if (Objects.nonNull(client)) client.close();
+    }
+
+    Stream<Neo4jEntity> convertEdgeToCQL(Edge edge) {
+        List<Neo4jEntity> cqls = Lists.newArrayListWithCapacity(edge.getSources().size() * edge.getTargets().size() + edge.getSources().size() + edge.getTargets().size() + 2);
         cqls.addAll(edge.getSources().stream().flatMap(this::convertVertex).collect(Collectors.toList()));
         cqls.addAll(edge.getTargets().stream().flatMap(this::convertVertex).collect(Collectors.toList()));
+        String rawExpr = edge.getExpr();
+        String rawHql = edge.getHql();
+        String expr = StringUtils.trimToEmpty(rawExpr);
+        String hql = StringUtils.trimToEmpty(rawHql);
+        String eid = hashedExpr ? fingerprint(expr) : null;
+        String hid = hashedExpr ? fingerprint(hql) : null;
+        if (hashedExpr) {
+            cqls.add(newEntity(EXPR_CQL_FORMAT, ImmutableMap.of("eid", eid, "expr", expr)));
+            cqls.add(newEntity(HQL_CQL_FORMAT, ImmutableMap.of("hid", hid, "hql", hql)));
+        }
+        if (hyperedge) {
+            cqls.addAll(convertHyperedge(edge, expr, hql, eid, hid));
+            return cqls.stream();
+        }
         for (Vertex s : edge.getSources()) {
-            Set<Vertex> targetStream = edge.getTargets();
-            cqls.addAll(targetStream.stream().filter(t -> t.getType() == Vertex.Type.COLUMN)
-                    .map(t -> {
-                        Neo4jEntity entity = new Neo4jEntity();
-                        entity.setCql(COL_DEP_COL_CQL_FORMAT);
-                        entity.setArgs(ImmutableMap.of(
-                                "slabel", s.getLabel(),
-                                "tlabel", t.getLabel(),
-                                "expr", edge.getExpr(),
-                                "hql", edge.getHql()
-                        ));
-                        return entity;
-                    }).collect(Collectors.toList()));
-            cqls.addAll(targetStream.stream().filter(t -> t.getType() == Vertex.Type.TABLE)
-                    .map(t -> {
-                        Neo4jEntity entity = new Neo4jEntity();
-                        entity.setCql(COL_DEP_TABLE_CQL_FORMAT);
-                        entity.setArgs(ImmutableMap.of(
-                                "slabel", s.getLabel(),
-                                "tdb", t.getDatabase(),
-                                "ttable", t.getTable(),
-                                "expr", StringUtils.trimToEmpty(edge.getExpr()),
-                                "hql", StringUtils.trimToEmpty(edge.getHql())
-                        ));
-                        return entity;
-
-
-                    })
-                    .collect(Collectors.toList()));
+            boolean tableSource = s.getType() == Vertex.Type.TABLE;
+            for (Vertex t : edge.getTargets()) {
+                boolean tableTarget = t.getType() == Vertex.Type.TABLE;
+                ImmutableMap.Builder<String, String> args = ImmutableMap.builder();
+                if (tableSource) args.put("sdb", s.getDatabase()).put("stable", s.getTable());
+                else args.put("slabel", s.getLabel());
+                if (tableTarget) args.put("tdb", t.getDatabase()).put("ttable", t.getTable());
+                else args.put("tlabel", t.getLabel());
+                if (hashedExpr) args.put("eid", eid).put("hid", hid);
+                else if (tableTarget) args.put("expr", expr).put("hql", hql);
+                else args.put("expr", rawExpr).put("hql", rawHql);
+                cqls.add(newEntity(depFormat(tableSource, tableTarget), args.build()));
+            }
         }
         return cqls.stream();
     }
 
+    private String depFormat(boolean tableSource, boolean tableTarget) {
+        if (hashedExpr) {
+            if (tableSource) return tableTarget ? TABLE_DEP_TABLE_HASHED_CQL_FORMAT : TABLE_DEP_COL_HASHED_CQL_FORMAT;
+            return tableTarget ? COL_DEP_TABLE_HASHED_CQL_FORMAT : COL_DEP_COL_HASHED_CQL_FORMAT;
+        }
+        if (tableSource) return tableTarget ? TABLE_DEP_TABLE_INLINE_CQL_FORMAT : TABLE_DEP_COL_CQL_FORMAT;
+        return tableTarget ? COL_DEP_TABLE_CQL_FORMAT : COL_DEP_COL_CQL_FORMAT;
+    }
+
+    /**
+     * One TRANSFORM node per edge, keyed like edges are merged in the hook:
+     * by expr, hql and the source columns. Targets merged into the edge later link to the same node.
+     */
+    private List<Neo4jEntity> convertHyperedge(Edge edge, String expr, String hql, String eid, String hid) {
+        List<Neo4jEntity> cqls = Lists.newArrayListWithCapacity(edge.getSources().size() + edge.getTargets().size() + 1);
+        List<String> sources = edge.getSources().stream()
+                .filter(v -> v.getType() == Vertex.Type.COLUMN)
+                .map(Vertex::getLabel)
+                .collect(Collectors.toList());
+        List<Vertex> tableSources = edge.getSources().stream()
+                .filter(v -> v.getType() == Vertex.Type.TABLE)
+                .collect(Collectors.toList());
+        String key = expr + "\u0000" + hql + "\u0000" + sources.stream().sorted().collect(Collectors.joining("\u0000"));
+        if (!tableSources.isEmpty()) {
+            // only edges with table sources (table granularity) get them into the key, column edges keep their ids
+            key += "\u0001" + tableSources.stream().map(Vertex::getLabel).sorted().collect(Collectors.joining("\u0000"));
+        }
+        String xid = fingerprint(key);
+        cqls.add(hashedExpr
+                ? newEntity(TRANSFORM_HASHED_CQL_FORMAT, ImmutableMap.of("xid", xid, "eid", eid, "hid", hid))
+                : newEntity(TRANSFORM_CQL_FORMAT, ImmutableMap.of("xid", xid, "expr", expr, "hql", hql)));
+        sources.forEach(s -> cqls.add(newEntity(COL_INPUT_OF_CQL_FORMAT, ImmutableMap.of("slabel", s, "xid", xid))));
+        tableSources.forEach(s -> cqls.add(newEntity(TABLE_INPUT_OF_CQL_FORMAT,
+                ImmutableMap.of("sdb", s.getDatabase(), "stable", s.getTable(), "xid", xid))));
+        for (Vertex t : edge.getTargets()) {
+            cqls.add(t.getType() == Vertex.Type.COLUMN
+                    ? newEntity(OUTPUT_TO_COL_CQL_FORMAT, ImmutableMap.of("xid", xid, "tlabel", t.getLabel()))
+                    : newEntity(OUTPUT_TO_TABLE_CQL_FORMAT, ImmutableMap.of("xid", xid, "tdb", t.getDatabase(), "ttable", t.getTable())));
+        }
+        return cqls;
+    }
+
+    private Neo4jEntity newEntity(String cql, Map<String, String> args) {
+        Neo4jEntity entity = new Neo4jEntity();
+        entity.setCql(cql);
+        entity.setArgs(args);
+        return entity;
+    }
+
+    /**
+     * Short content hash used to reference a stored expr or hql.
+     */
+    static String fingerprint(String text) {
+        return Long.toHexString(Hashing.murmur3_128().hashString(text, StandardCharsets.UTF_8).asLong());
+    }
+
 
     private Stream<Neo4jEntity> convertVertex(Vertex v) {
         List<Neo4jEntity> list = Lists.newArrayListWithCapacity(2);
@@ -137,36 +429,114 @@ public class Neo4JLineageEdgeStore extends LineageEdgeStore {
         return list.stream();
     }
 
-    private static class Neo4J {
+    static class Neo4J {
 
         private HttpClient client;
         private String url;
+        private String txUrl;
         private Header[] headers;
 
-        Neo4J(String url, String username, String password) {
+        Neo4J(String url, String username, String password, Configuration conf) {
             this.url = url + "/db/data/cypher";
-            this.client = new DefaultHttpClient();
+            this.txUrl = url + "/db/data/transaction/commit";
+            // pooled manager makes the client safe to share between HiveServer2 sessions
+            PoolingClientConnectionManager cm = new PoolingClientConnectionManager();
+            cm.setMaxTotal(conf.getInt("hive.lineage.neo4j.pool.max.total", 64));
+            cm.setDefaultMaxPerRoute(conf.getInt("hive.lineage.neo4j.pool.max.per.route", 32));
+            HttpParams params = new BasicHttpParams();
+            HttpConnectionParams.setConnectionTimeout(params, conf.getInt("hive.lineage.neo4j.connect.timeout.ms", 5000));
+            HttpConnectionParams.setSoTimeout(params, conf.getInt("hive.lineage.neo4j.read.timeout.ms", 30000));
+            params.setLongParameter(ClientPNames.CONN_MANAGER_TIMEOUT, conf.getLong("hive.lineage.neo4j.acquire.timeout.ms", 5000L));
+            DefaultHttpClient httpClient = new DefaultHttpClient(cm, params);
+            final long keepAlive = conf.getLong("hive.lineage.neo4j.keepalive.ms", 60000L);
+            final DefaultConnectionKeepAliveStrategy serverKeepAlive = new DefaultConnectionKeepAliveStrategy();
+            httpClient.setKeepAliveStrategy((resp, context) -> {
+                long duration = serverKeepAlive.getKeepAliveDuration(resp, context);
+                return duration > 0 ? duration : keepAlive;
+            });
+            this.client = httpClient;
             headers = new Header[2];
             String token = "Basic " + Base64.getEncoder().encodeToString(StringUtils.join(username, ":", password).getBytes());
             headers[0] = new BasicHeader(HttpHeaders.AUTHORIZATION, token);
             headers[1] = new BasicHeader(HttpHeaders.CONTENT_TYPE, ContentType.APPLICATION_JSON.getMimeType());
         }
 
-        private void run(Neo4jEntity entity) {
+        private boolean run(Neo4jEntity entity) {
             HttpPost post = new HttpPost(url);
+            JsonStreamEntity body = new JsonStreamEntity(entity::writeHttpBody);
+            long start = System.nanoTime();
+            boolean success = false;
             try {
-                post.setEntity(new StringEntity(entity.toHttpBody()
-                        , ContentType.APPLICATION_JSON)
-                );
+                post.setEntity(body);
                 post.setHeaders(this.headers);
                 HttpResponse resp = this.client.execute(post);
+                // read the body fully so the connection is kept alive for reuse
+                String result = EntityUtils.toString(resp.getEntity());
                 if (resp.getStatusLine().getStatusCode() != HttpStatus.SC_OK) {
-                    LOG.error(EntityUtils.toString(resp.getEntity()));
+                    LOG.error(result);
+                    return false;
                 }
+                success = true;
+                return true;
             } catch (Exception e) {
                 LOG.error("insert neo4j error,cql:" + entity.cql + ",params:" + entity.getArgs(), e);
+                return false;
             } finally {
                 post.releaseConnection();
+                LineageMetrics.get().neo4jRequest(start, body.getBytesWritten(), !success);
+            }
+        }
+
+        void close() {
+            this.client.getConnectionManager().shutdown();
+        }
+
+        /**
+         * Send all statements in one request to the transactional endpoint,
+         * they are committed together in a single transaction.
+         */
+        private boolean runBatch(List<Neo4jEntity> entities) {
+            return commit(w -> {
+                for (Neo4jEntity e : entities) {
+                    e.writeStatement(w);
+                }
+            }, entities.size());
+        }
+
+        /**
+         * Post statements written by the body into the "statements" array of one transaction.
+         */
+        boolean commit(JsonStreamEntity.Body statements, int count) {
+            HttpPost post = new HttpPost(txUrl);
+            JsonStreamEntity body = new JsonStreamEntity(w -> {
+                w.beginObject().name("statements").beginArray();
+                statements.write(w);
+                w.endArray().endObject();
+            });
+            long start = System.nanoTime();
+            boolean success = false;
+            try {
+                post.setEntity(body);
+                post.setHeaders(this.headers);
+                HttpResponse resp = this.client.execute(post);
+                String result = EntityUtils.toString(resp.getEntity());
+                if (resp.getStatusLine().getStatusCode() != HttpStatus.SC_OK) {
+                    LOG.error(result);
+                    return false;
+                }
+                JsonElement errors = new JsonParser().parse(result).getAsJsonObject().get("errors");
+                if (Objects.nonNull(errors) && errors.isJsonArray() && errors.getAsJsonArray().size() > 0) {
+                    LOG.error("insert neo4j error,statements:" + count + ",errors:" + errors);
+                    return false;
+                }
+                success = true;
+                return true;
+            } catch (Exception e) {
+                LOG.error("insert neo4j error,statements:" + count, e);
+                return false;
+            } finally {
+                post.releaseConnection();
+                LineageMetrics.get().neo4jRequest(start, body.getBytesWritten(), !success);
             }
         }
 
@@ -174,10 +544,14 @@ public class Neo4JLineageEdgeStore extends LineageEdgeStore {
     }
 
 
-    private class Neo4jEntity {
+    static class Neo4jEntity {
         private String cql;
         private Map<String, String> args;
 
+        public String getCql() {
+            return cql;
+        }
+
         public void setCql(String cql) {
             this.cql = cql;
         }
@@ -190,12 +564,48 @@ public class Neo4JLineageEdgeStore extends LineageEdgeStore {
             this.args = args;
         }
 
-        private String toHttpBody() {
-            JsonObject json = new JsonObject();
-            json.addProperty("query", this.cql);
-            JsonElement params = g.toJsonTree(this.args);
-            json.add("params", params);
-            return json.toString();
+        void writeHttpBody(JsonWriter writer) throws IOException {
+            writer.beginObject().name("query").value(this.cql).name("params");
+            writeArgs(writer);
+            writer.endObject();
+        }
+
+        private long fingerprint() {
+            Hasher hasher = Hashing.murmur3_128().newHasher().putString(this.cql, StandardCharsets.UTF_8);
+            this.args.forEach((k, v) -> hasher.putString(k, StandardCharsets.UTF_8).putByte((byte) 0)
+                    .putString(v, StandardCharsets.UTF_8).putByte((byte) 0));
+            return hasher.hash().asLong();
+        }
+
+        void writeStatement(JsonWriter writer) throws IOException {
+            writer.beginObject().name("statement").value(this.cql).name("parameters");
+            writeArgs(writer);
+            writer.endObject();
+        }
+
+        private void writeArgs(JsonWriter writer) throws IOException {
+            writer.beginObject();
+            for (Map.Entry<String, String> arg : this.args.entrySet()) {
+                writer.name(arg.getKey()).value(arg.getValue());
+            }
+            writer.endObject();
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(cql, args);
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (this == obj) {
+                return true;
+            }
+            if (!(obj instanceof Neo4jEntity)) {
+                return false;
+            }
+            Neo4jEntity entity = (Neo4jEntity) obj;
+            return Objects.equals(cql, entity.cql) && Objects.equals(args, entity.args);
         }
 
     }
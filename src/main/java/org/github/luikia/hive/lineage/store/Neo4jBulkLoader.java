@@ -0,0 +1,332 @@
+package org.github.luikia.hive.lineage.store;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
+import com.google.gson.stream.JsonWriter;
+import org.apache.commons.lang3.StringUtils;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.conf.Configured;
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.util.Tool;
+import org.apache.hadoop.util.ToolRunner;
+import org.github.luikia.hive.lineage.Edge;
+import org.github.luikia.hive.lineage.EdgeCodec;
+import org.github.luikia.hive.lineage.LineageFingerprints;
+import org.github.luikia.hive.lineage.Vertex;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * Loads files written by {@link FileExportLineageEdgeStore} into Neo4j.
+ * <p>
+ * All complete files of the directory are read first and vertices and relations are deduplicated
+ * across them. Nodes and relations are then merged phase by phase with UNWIND statements of
+ * hive.lineage.bulk.batch.size rows. Within a phase rows are partitioned by the label hash of the
+ * node they lock, so parallel workers rarely wait on each other; a batch that still fails, e.g. on a
+ * deadlock between two workers merging relations of the same source, is retried. Every statement is
+ * an idempotent MERGE, so a run that failed half way can simply be repeated. The graph matches what
+ * {@link Neo4JLineageEdgeStore} writes with the default pairwise model and inline expr mode.
+ * Loaded files are moved to the loaded/ sub directory.
+ * <p>
+ * hadoop jar hive_lineage_plugin.jar org.github.luikia.hive.lineage.store.Neo4jBulkLoader [-D key=value ...] &lt;export dir&gt;
+ */
+public class Neo4jBulkLoader extends Configured implements Tool {
+    private static final Logger LOG = LoggerFactory.getLogger(Neo4jBulkLoader.class);
+
+    private static final String LOADED_DIR = "loaded";
+
+    private static final String DATABASE_CQL =
+            "UNWIND $rows AS row MERGE (d:DATABASE{name:row.db}) ON CREATE SET d+={name:row.db,ctime:timestamp(),mtime:timestamp()} ON MATCH SET d+={mtime:timestamp()}";
+
+    private static final String TABLE_CQL =
+            "UNWIND $rows AS row MATCH (d:DATABASE{name:row.db}) " +
+                    "MERGE (t:TABLE{name:row.table,db:row.db}) ON CREATE SET t+={name:row.table,db:row.db,ctime:timestamp(),mtime:timestamp()} ON MATCH SET t+={mtime:timestamp()} " +
+                    "MERGE (d)-[r:HAVE_TABLE]->(t) ON CREATE SET r += {ctime:timestamp(),mtime:timestamp()} ON MATCH SET r += {mtime:timestamp()}";
+
+    private static final String COL_CQL =
+            "UNWIND $rows AS row MATCH (t:TABLE{name:row.table,db:row.db}) " +
+                    "MERGE (c:COLUMN{label:row.label}) ON CREATE SET c+={label:row.label,name:row.col,table:row.table,db:row.db,comment:row.comment,ctime:timestamp(),mtime:timestamp()} ON MATCH SET c+={mtime:timestamp()} " +
+                    "MERGE (t)-[r:HAVE_COLUMN]->(c) ON CREATE SET r += {ctime:timestamp(),mtime:timestamp()} ON MATCH SET r += {mtime:timestamp()}";
+
+    private static final String COL_DEP_COL_CQL =
+            "UNWIND $rows AS row MATCH (cs:COLUMN{label:row.slabel}) MATCH (ct:COLUMN{label:row.tlabel}) " +
+                    "MERGE (cs)-[r:DEP{expr:row.expr,hql:row.hql}]->(ct) ON CREATE SET r += {expr:row.expr,hql:row.hql," +
+                    "ctime:timestamp(),mtime:timestamp()} ON MATCH SET r += {mtime:timestamp()}";
+
+    private static final String COL_DEP_TABLE_CQL =
+            "UNWIND $rows AS row MATCH (cs:COLUMN{label:row.slabel}) MATCH (ct:TABLE{db:row.tdb,name:row.ttable}) " +
+                    "MERGE (cs)-[r:DEP{expr:row.expr,hql:row.hql}]->(ct) ON CREATE SET r += {expr:row.expr,hql:row.hql," +
+                    "ctime:timestamp(),mtime:timestamp()} ON MATCH SET r += {mtime:timestamp()}";
+
+    private static final String TABLE_SRC_DEP_COL_CQL =
+            "UNWIND $rows AS row MATCH (cs:TABLE{db:row.sdb,name:row.stable}) MATCH (ct:COLUMN{label:row.tlabel}) " +
+                    "MERGE (cs)-[r:DEP{expr:row.expr,hql:row.hql}]->(ct) ON CREATE SET r += {expr:row.expr,hql:row.hql," +
+                    "ctime:timestamp(),mtime:timestamp()} ON MATCH SET r += {mtime:timestamp()}";
+
+    private static final String TABLE_SRC_DEP_TABLE_CQL =
+            "UNWIND $rows AS row MATCH (cs:TABLE{db:row.sdb,name:row.stable}) MATCH (ct:TABLE{db:row.tdb,name:row.ttable}) " +
+                    "MERGE (cs)-[r:DEP{expr:row.expr,hql:row.hql}]->(ct) ON CREATE SET r += {expr:row.expr,hql:row.hql," +
+                    "ctime:timestamp(),mtime:timestamp()} ON MATCH SET r += {mtime:timestamp()}";
+
+    private static final String TABLE_DEP_TABLE_CQL =
+            "UNWIND $rows AS row MATCH (ts:TABLE{db:row.sdb,name:row.stable}) MATCH (tt:TABLE{db:row.tdb,name:row.ttable}) " +
+                    "MERGE (ts)-[r:TABLE_DEP]->(tt) ON CREATE SET r += {hids:[],count:0,ctime:timestamp()} " +
+                    "WITH row, r, row.hid IN r.hids AS seen " +
+                    "SET r.count = CASE WHEN seen THEN r.count ELSE coalesce(r.count,0) + 1 END, " +
+                    "r.hids = CASE WHEN seen THEN r.hids ELSE (r.hids + row.hid)[-toInteger(row.maxHids)..] END, " +
+                    "r.columns = toInteger(row.columns), r.mtime = timestamp(), r.lastSeen = timestamp()";
+
+    private static final String HQL_TARGET_CQL =
+            "UNWIND $rows AS row MERGE (q:HQL{id:row.hid}) ON CREATE SET q+={id:row.hid,name:row.hql,ctime:timestamp()} " +
+                    "SET q.targets = CASE WHEN row.target IN coalesce(q.targets,[]) THEN q.targets ELSE coalesce(q.targets,[]) + row.target END";
+
+    private final Set<List<String>> databases = Sets.newLinkedHashSet();
+    private final Set<List<String>> tables = Sets.newLinkedHashSet();
+    private final Map<String, List<String>> columns = Maps.newLinkedHashMap();
+    private final Set<List<String>> colDeps = Sets.newLinkedHashSet();
+    private final Set<List<String>> tableDeps = Sets.newLinkedHashSet();
+    // sources collapsed to their table by hive.lineage.granularity
+    private final Set<List<String>> tableSrcColDeps = Sets.newLinkedHashSet();
+    private final Set<List<String>> tableSrcTableDeps = Sets.newLinkedHashSet();
+    // hql fingerprint, source and target table -> column dependencies of the latest write
+    private final Map<List<String>, Integer> rollup = Maps.newLinkedHashMap();
+    // hql fingerprint, hql and target table, for heartbeats to find the TABLE_DEP relations of a query
+    private final Set<List<String>> hqlTargets = Sets.newLinkedHashSet();
+
+    private int retries;
+    private long retryBackoffMs;
+
+    public static void main(String[] args) throws Exception {
+        System.exit(ToolRunner.run(new Configuration(), new Neo4jBulkLoader(), args));
+    }
+
+    @Override
+    public int run(String[] args) throws Exception {
+        if (args.length != 1) {
+            System.err.println("usage: Neo4jBulkLoader [-D key=value ...] <export dir>");
+            return 2;
+        }
+        Configuration conf = getConf();
+        Path dir = new Path(args[0]);
+        FileSystem fs = dir.getFileSystem(conf);
+        List<Path> files = Lists.newArrayList();
+        for (FileStatus status : fs.listStatus(dir)) {
+            if (status.isFile() && status.getPath().getName().endsWith(FileExportLineageEdgeStore.SUFFIX)) {
+                files.add(status.getPath());
+            }
+        }
+        if (files.isEmpty()) {
+            LOG.info("no lineage export files under " + dir);
+            return 0;
+        }
+        for (Path file : files) {
+            read(fs, file);
+        }
+        LOG.info("read " + files.size() + " lineage export files,tables:" + tables.size() + ",columns:" + columns.size()
+                + ",dependencies:" + (colDeps.size() + tableDeps.size() + tableSrcColDeps.size() + tableSrcTableDeps.size()));
+        boolean success = load(conf);
+        if (!success) {
+            LOG.error("bulk load lineage failed,files are left in " + dir + " for the next run");
+            return 1;
+        }
+        Path loaded = new Path(dir, LOADED_DIR);
+        fs.mkdirs(loaded);
+        for (Path file : files) {
+            if (!fs.rename(file, new Path(loaded, file.getName()))) {
+                LOG.warn("move loaded lineage export file error,file:" + file);
+            }
+        }
+        return 0;
+    }
+
+    private void read(FileSystem fs, Path file) throws IOException {
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new GZIPInputStream(fs.open(file), 1 << 16), 1 << 16))) {
+            if (in.readInt() != FileExportLineageEdgeStore.MAGIC || in.readByte() != FileExportLineageEdgeStore.VERSION) {
+                throw new IOException("unknown lineage export file format " + file);
+            }
+            while (true) {
+                List<Edge> edges;
+                try {
+                    edges = EdgeCodec.read(in);
+                } catch (EOFException ex) {
+                    return;
+                } catch (IOException ex) {
+                    // a recovered .tmp file may end in a block torn by the failed write
+                    LOG.warn("skip torn lineage block at the end of " + file, ex);
+                    return;
+                }
+                add(edges);
+            }
+        }
+    }
+
+    private void add(List<Edge> edges) {
+        Map<List<String>, Integer> pairs = Maps.newHashMap();
+        for (Edge edge : edges) {
+            if (edge.getType() != Edge.Type.PROJECTION) continue;
+            edge.getSources().forEach(this::addVertex);
+            edge.getTargets().forEach(this::addVertex);
+            String rawExpr = StringUtils.defaultString(edge.getExpr());
+            String rawHql = StringUtils.defaultString(edge.getHql());
+            String hql = StringUtils.trimToEmpty(rawHql);
+            String hid = Neo4JLineageEdgeStore.fingerprint(hql);
+            for (Vertex s : edge.getSources()) {
+                for (Vertex t : edge.getTargets()) {
+                    pairs.merge(Arrays.asList(hid, s.getDatabase(), s.getTable(), t.getDatabase(), t.getTable()), 1, Integer::sum);
+                    if (StringUtils.isNotEmpty(hql)) {
+                        hqlTargets.add(Arrays.asList(hid, hql, t.getDatabase() + "." + t.getTable()));
+                    }
+                    if (s.getType() == Vertex.Type.TABLE) {
+                        if (t.getType() == Vertex.Type.COLUMN) {
+                            tableSrcColDeps.add(Arrays.asList(s.getDatabase(), s.getTable(), t.getLabel(), rawExpr, rawHql));
+                        } else {
+                            tableSrcTableDeps.add(Arrays.asList(s.getDatabase(), s.getTable(), t.getDatabase(), t.getTable(),
+                                    StringUtils.trimToEmpty(rawExpr), StringUtils.trimToEmpty(rawHql)));
+                        }
+                        continue;
+                    }
+                    if (t.getType() == Vertex.Type.COLUMN) {
+                        colDeps.add(Arrays.asList(s.getLabel(), t.getLabel(), rawExpr, rawHql));
+                    } else {
+                        tableDeps.add(Arrays.asList(s.getLabel(), t.getDatabase(), t.getTable(),
+                                StringUtils.trimToEmpty(rawExpr), StringUtils.trimToEmpty(rawHql)));
+                    }
+                }
+            }
+        }
+        rollup.putAll(pairs);
+    }
+
+    private void addVertex(Vertex v) {
+        databases.add(Arrays.asList(v.getDatabase()));
+        tables.add(Arrays.asList(v.getDatabase(), v.getTable()));
+        if (v.getType() == Vertex.Type.COLUMN) {
+            columns.putIfAbsent(v.getLabel(), Arrays.asList(v.getLabel(), v.getColumn(), v.getTable(), v.getDatabase(),
+                    StringUtils.defaultString(v.getComment())));
+        }
+    }
+
+    private boolean load(Configuration conf) throws Exception {
+        int workers = conf.getInt("hive.lineage.bulk.workers", 8);
+        int batchSize = conf.getInt("hive.lineage.bulk.batch.size", 5000);
+        this.retries = conf.getInt("hive.lineage.bulk.retries", 3);
+        this.retryBackoffMs = conf.getLong("hive.lineage.bulk.retry.backoff.ms", 1000L);
+        Neo4JLineageEdgeStore.Neo4J client = new Neo4JLineageEdgeStore.Neo4J(conf.getTrimmed("hive.lineage.neo4j.url"),
+                conf.getTrimmed("hive.lineage.neo4j.username"), conf.getTrimmed("hive.lineage.neo4j.password"), conf);
+        ExecutorService pool = Executors.newFixedThreadPool(workers);
+        try {
+            // every phase only matches nodes merged by the phases before it
+            boolean success = phase(client, pool, workers, batchSize, "databases", DATABASE_CQL,
+                    new String[]{"db"}, databases, r -> r.get(0));
+            success &= phase(client, pool, workers, batchSize, "tables", TABLE_CQL,
+                    new String[]{"db", "table"}, tables, r -> r.get(0));
+            success &= phase(client, pool, workers, batchSize, "columns", COL_CQL,
+                    new String[]{"label", "col", "table", "db", "comment"}, columns.values(), r -> r.get(3) + "." + r.get(2));
+            success &= phase(client, pool, workers, batchSize, "column dependencies", COL_DEP_COL_CQL,
+                    new String[]{"slabel", "tlabel", "expr", "hql"}, colDeps, r -> StringUtils.substringBeforeLast(r.get(1), "."));
+            success &= phase(client, pool, workers, batchSize, "table dependencies", COL_DEP_TABLE_CQL,
+                    new String[]{"slabel", "tdb", "ttable", "expr", "hql"}, tableDeps, r -> r.get(1) + "." + r.get(2));
+            success &= phase(client, pool, workers, batchSize, "table source column dependencies", TABLE_SRC_DEP_COL_CQL,
+                    new String[]{"sdb", "stable", "tlabel", "expr", "hql"}, tableSrcColDeps, r -> StringUtils.substringBeforeLast(r.get(2), "."));
+            success &= phase(client, pool, workers, batchSize, "table source table dependencies", TABLE_SRC_DEP_TABLE_CQL,
+                    new String[]{"sdb", "stable", "tdb", "ttable", "expr", "hql"}, tableSrcTableDeps, r -> r.get(2) + "." + r.get(3));
+            if (conf.getBoolean("hive.lineage.neo4j.table.rollup.enable", false)) {
+                String maxHids = String.valueOf(Math.max(0, conf.getInt("hive.lineage.neo4j.table.rollup.max.hids", 1000)));
+                List<List<String>> rows = Lists.newArrayListWithCapacity(rollup.size());
+                rollup.forEach((key, columns) -> {
+                    List<String> row = Lists.newArrayList(key);
+                    row.add(String.valueOf(columns));
+                    row.add(maxHids);
+                    rows.add(row);
+                });
+                success &= phase(client, pool, workers, batchSize, "table rollup", TABLE_DEP_TABLE_CQL,
+                        new String[]{"hid", "sdb", "stable", "tdb", "ttable", "columns", "maxHids"}, rows, r -> r.get(3) + "." + r.get(4));
+                if (LineageFingerprints.isEnabled(conf)) {
+                    success &= phase(client, pool, workers, batchSize, "query targets", HQL_TARGET_CQL,
+                            new String[]{"hid", "hql", "target"}, hqlTargets, r -> r.get(0));
+                }
+            }
+            return success;
+        } finally {
+            pool.shutdownNow();
+            client.close();
+        }
+    }
+
+    private interface PartitionKey {
+        String of(List<String> row);
+    }
+
+    private boolean phase(Neo4JLineageEdgeStore.Neo4J client, ExecutorService pool, int workers, int batchSize,
+                          String name, String cql, String[] fields, Iterable<List<String>> rows, PartitionKey key) throws Exception {
+        long start = System.currentTimeMillis();
+        List<List<List<String>>> partitions = Lists.newArrayListWithCapacity(workers);
+        for (int i = 0; i < workers; i++) {
+            partitions.add(Lists.newArrayList());
+        }
+        int total = 0;
+        for (List<String> row : rows) {
+            partitions.get((key.of(row).hashCode() & Integer.MAX_VALUE) % workers).add(row);
+            total++;
+        }
+        List<Future<Boolean>> futures = Lists.newArrayList();
+        for (List<List<String>> partition : partitions) {
+            futures.add(pool.submit(() -> {
+                boolean ok = true;
+                for (List<List<String>> batch : Lists.partition(partition, batchSize)) {
+                    ok &= commit(client, name, cql, fields, batch);
+                }
+                return ok;
+            }));
+        }
+        boolean success = true;
+        for (Future<Boolean> future : futures) {
+            success &= future.get();
+        }
+        LOG.info("bulk load " + name + ",rows:" + total + ",success:" + success + ",cost:" + (System.currentTimeMillis() - start) + "ms");
+        return success;
+    }
+
+    /**
+     * Commit one batch, retrying failures such as DeadlockDetected with a growing, jittered backoff.
+     */
+    private boolean commit(Neo4JLineageEdgeStore.Neo4J client, String name, String cql, String[] fields,
+                           List<List<String>> batch) throws InterruptedException {
+        for (int attempt = 0; ; attempt++) {
+            if (client.commit(w -> writeStatement(w, cql, fields, batch), 1)) return true;
+            if (attempt >= retries) return false;
+            long backoff = retryBackoffMs * (attempt + 1);
+            LOG.warn("bulk load " + name + " batch failed,retry " + (attempt + 1) + "/" + retries + " in " + backoff + "ms");
+            Thread.sleep(backoff + ThreadLocalRandom.current().nextLong(backoff + 1));
+        }
+    }
+
+    private static void writeStatement(JsonWriter w, String cql, String[] fields, List<List<String>> rows) throws IOException {
+        w.beginObject().name("statement").value(cql).name("parameters").beginObject().name("rows").beginArray();
+        for (List<String> row : rows) {
+            w.beginObject();
+            for (int i = 0; i < fields.length; i++) {
+                w.name(fields[i]).value(row.get(i));
+            }
+            w.endObject();
+        }
+        w.endArray().endObject().endObject();
+    }
+}
@@ -0,0 +1,96 @@
+package org.github.luikia.hive.lineage;
+
+import com.google.common.base.Strings;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Sets;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class EdgeCodecTest {
+
+    @Test
+    public void testRoundTrip() throws IOException {
+        Vertex a = Vertex.of("db.s.a", Vertex.Type.COLUMN, "comment");
+        Vertex b = Vertex.of("db.s.b", Vertex.Type.COLUMN, "");
+        Vertex t = Vertex.of("db.t", Vertex.Type.TABLE, "");
+        List<Edge> edges = Lists.newArrayList(
+                Edge.of(Sets.newLinkedHashSet(Arrays.asList(a, b)), Sets.newLinkedHashSet(Collections.singleton(t)),
+                        "concat(a, b)", "insert into db.t select concat(a, b) from db.s", Edge.Type.PROJECTION),
+                Edge.of(Sets.newLinkedHashSet(Collections.singleton(b)), Sets.newLinkedHashSet(Collections.singleton(t)),
+                        null, null, Edge.Type.PREDICATE),
+                // longer than the 64k writeUTF limit
+                Edge.of(Sets.newLinkedHashSet(), Sets.newLinkedHashSet(Collections.singleton(a)),
+                        Strings.repeat("x", 70000), "", Edge.Type.PROJECTION));
+        List<Edge> read = EdgeCodec.read(input(encode(edges)));
+        assertEquals(edges.size(), read.size());
+        for (int i = 0; i < edges.size(); i++) {
+            Edge e = edges.get(i);
+            Edge r = read.get(i);
+            assertEquals(e.getType(), r.getType());
+            assertEquals(e.getExpr(), r.getExpr());
+            assertEquals(e.getHql(), r.getHql());
+            assertEquals(Lists.newArrayList(e.getSources()), Lists.newArrayList(r.getSources()));
+            assertEquals(Lists.newArrayList(e.getTargets()), Lists.newArrayList(r.getTargets()));
+        }
+        assertEquals("comment", read.get(0).getSources().iterator().next().getComment());
+    }
+
+    @Test
+    public void testSharedVertexWrittenOnce() throws IOException {
+        Vertex t = Vertex.of("db.t.a", Vertex.Type.COLUMN, "");
+        List<Edge> edges = Lists.newArrayList();
+        for (int i = 0; i < 100; i++) {
+            edges.add(Edge.of(Sets.newHashSet(Vertex.of("db.s.c" + i, Vertex.Type.COLUMN, "")),
+                    Sets.newHashSet(t), "c" + i, "q", Edge.Type.PROJECTION));
+        }
+        byte[] bytes = encode(edges);
+        String text = new String(bytes, StandardCharsets.UTF_8);
+        assertEquals(text.indexOf("db.t.a"), text.lastIndexOf("db.t.a"));
+    }
+
+    @Test
+    public void testUnknownVersion() throws IOException {
+        byte[] bytes = encode(Collections.emptyList());
+        bytes[0] = EdgeCodec.VERSION + 1;
+        try {
+            EdgeCodec.read(input(bytes));
+            fail("version " + bytes[0] + " is not supported");
+        } catch (IOException ex) {
+            assertTrue(ex.getMessage().contains("version"));
+        }
+    }
+
+    @Test(expected = EOFException.class)
+    public void testTruncated() throws IOException {
+        Edge edge = Edge.of(Sets.newHashSet(Vertex.of("db.s.a", Vertex.Type.COLUMN, "")),
+                Sets.newHashSet(Vertex.of("db.t.a", Vertex.Type.COLUMN, "")), "a", "q", Edge.Type.PROJECTION);
+        byte[] bytes = encode(Collections.singletonList(edge));
+        EdgeCodec.read(input(Arrays.copyOf(bytes, bytes.length - 3)));
+    }
+
+    private static byte[] encode(List<Edge> edges) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        EdgeCodec.write(out, edges);
+        out.flush();
+        return bytes.toByteArray();
+    }
+
+    private static DataInputStream input(byte[] bytes) {
+        return new DataInputStream(new ByteArrayInputStream(bytes));
+    }
+}
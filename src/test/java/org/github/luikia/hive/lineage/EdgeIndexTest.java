@@ -0,0 +1,145 @@
+package org.github.luikia.hive.lineage;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Sets;
+import org.apache.commons.collections.SetUtils;
+import org.apache.commons.lang.StringUtils;
+import org.junit.Test;
+
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+
+/**
+ * EdgeIndex must merge exactly like the linear findSimilarEdgeBySources scan it replaced.
+ */
+public class EdgeIndexTest {
+
+    private static final String[] EXPRS = {null, "", "a", "'a'", "b", "concat(a, 'x')", "concat(a, x)"};
+
+    private static final String[] HQLS = {null, "", "q1", "q2"};
+
+    @Test
+    public void testSameEdgesAsLinearScan() {
+        Random random = new Random(42);
+        Vertex[] vertices = new Vertex[8];
+        for (int i = 0; i < vertices.length; i++) {
+            vertices[i] = i % 4 == 0
+                    ? Vertex.of("db.t" + i, Vertex.Type.TABLE, "")
+                    : Vertex.of("db.t" + i + ".c", Vertex.Type.COLUMN, "");
+        }
+        for (int round = 0; round < 200; round++) {
+            EdgeIndex index = new EdgeIndex();
+            List<Edge> scan = Lists.newArrayList();
+            for (int i = 0; i < 100; i++) {
+                Set<Vertex> sources = Sets.newLinkedHashSet();
+                int n = random.nextInt(3);
+                for (int j = 0; j < n; j++) {
+                    sources.add(vertices[random.nextInt(vertices.length)]);
+                }
+                String expr = EXPRS[random.nextInt(EXPRS.length)];
+                String hql = HQLS[random.nextInt(HQLS.length)];
+                Edge.Type type = random.nextBoolean() ? Edge.Type.PROJECTION : Edge.Type.PREDICATE;
+                Vertex target = vertices[random.nextInt(vertices.length)];
+                index.add(sources, Sets.newLinkedHashSet(Sets.newHashSet(target)), expr, hql, type);
+                addByScan(scan, sources, Sets.newLinkedHashSet(Sets.newHashSet(target)), expr, hql, type);
+            }
+            assertSameEdges(scan, index.getEdges());
+        }
+    }
+
+    @Test
+    public void testNullExprNeverMerges() {
+        EdgeIndex index = new EdgeIndex();
+        Set<Vertex> sources = Sets.newHashSet(Vertex.of("db.s.a", Vertex.Type.COLUMN, ""));
+        index.add(sources, targets("db.t.a"), null, "q", Edge.Type.PROJECTION);
+        index.add(sources, targets("db.t.b"), null, "q", Edge.Type.PROJECTION);
+        assertEquals(2, index.size());
+    }
+
+    @Test
+    public void testQuotedExprNeverMerges() {
+        EdgeIndex index = new EdgeIndex();
+        Set<Vertex> sources = Sets.newHashSet(Vertex.of("db.s.a", Vertex.Type.COLUMN, ""));
+        index.add(sources, targets("db.t.a"), "'x'", "q", Edge.Type.PROJECTION);
+        index.add(sources, targets("db.t.b"), "'x'", "q", Edge.Type.PROJECTION);
+        assertEquals(2, index.size());
+    }
+
+    @Test
+    public void testNullHqlNeverMerges() {
+        EdgeIndex index = new EdgeIndex();
+        Set<Vertex> sources = Sets.newHashSet(Vertex.of("db.s.a", Vertex.Type.COLUMN, ""));
+        index.add(sources, targets("db.t.a"), "a", null, Edge.Type.PROJECTION);
+        index.add(sources, targets("db.t.b"), "a", null, Edge.Type.PROJECTION);
+        assertEquals(2, index.size());
+        // the stored edge exposes "" and is found by a later non-null hql
+        index.add(sources, targets("db.t.c"), "a", "", Edge.Type.PROJECTION);
+        assertEquals(2, index.size());
+        assertEquals(2, index.getEdges().get(0).getTargets().size());
+    }
+
+    @Test
+    public void testFirstMatchWins() {
+        EdgeIndex index = new EdgeIndex();
+        Set<Vertex> sources = Sets.newHashSet(Vertex.of("db.s.a", Vertex.Type.COLUMN, ""));
+        index.add(sources, targets("db.t.a"), "'x'", "q", Edge.Type.PROJECTION);
+        index.add(sources, targets("db.t.b"), "'x'", "q", Edge.Type.PROJECTION);
+        index.add(sources, targets("db.t.c"), "x", "q", Edge.Type.PROJECTION);
+        List<Edge> edges = index.getEdges();
+        assertEquals(2, edges.size());
+        assertEquals(targets("db.t.a", "db.t.c"), edges.get(0).getTargets());
+        assertEquals(targets("db.t.b"), edges.get(1).getTargets());
+    }
+
+    @Test
+    public void testDrainStartsOver() {
+        EdgeIndex index = new EdgeIndex();
+        Set<Vertex> sources = Sets.newHashSet(Vertex.of("db.s.a", Vertex.Type.COLUMN, ""));
+        index.add(sources, targets("db.t.a"), "a", "q", Edge.Type.PROJECTION);
+        Edge drained = index.drain().get(0);
+        index.add(sources, targets("db.t.b"), "a", "q", Edge.Type.PROJECTION);
+        assertEquals(1, index.size());
+        assertEquals(targets("db.t.a"), drained.getTargets());
+        assertSame(sources, index.getEdges().get(0).getSources());
+    }
+
+    /**
+     * The merge rule of the hook before EdgeIndex.
+     */
+    private static void addByScan(List<Edge> edges, Set<Vertex> sources, Set<Vertex> targets,
+                                  String expr, String hql, Edge.Type type) {
+        for (Edge edge : edges) {
+            if (edge.getType() == type && StringUtils.equals(edge.getExpr(), expr)
+                    && SetUtils.isEqualSet(edge.getSources(), sources) && StringUtils.equals(edge.getHql(), hql)) {
+                edge.getTargets().addAll(targets);
+                return;
+            }
+        }
+        edges.add(Edge.of(sources, targets, expr, hql, type));
+    }
+
+    private static void assertSameEdges(List<Edge> expected, List<Edge> actual) {
+        assertEquals(expected.size(), actual.size());
+        for (int i = 0; i < expected.size(); i++) {
+            Edge e = expected.get(i);
+            Edge a = actual.get(i);
+            assertEquals(e.getType(), a.getType());
+            assertEquals(e.getExpr(), a.getExpr());
+            assertEquals(e.getHql(), a.getHql());
+            assertEquals(e.getSources(), a.getSources());
+            assertEquals(Lists.newArrayList(e.getTargets()), Lists.newArrayList(a.getTargets()));
+        }
+    }
+
+    private static Set<Vertex> targets(String... labels) {
+        Set<Vertex> targets = Sets.newLinkedHashSet();
+        for (String label : labels) {
+            targets.add(Vertex.of(label, Vertex.Type.COLUMN, ""));
+        }
+        return targets;
+    }
+}
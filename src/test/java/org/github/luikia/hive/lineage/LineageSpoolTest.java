@@ -0,0 +1,132 @@
+package org.github.luikia.hive.lineage;
+
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Sets;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * The [length][crc32][payload] records of the spool segments.
+ */
+public class LineageSpoolTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void testRoundTrip() throws IOException {
+        try (FileChannel ch = open(folder.newFile())) {
+            long[] ends = write(ch, batch(0), batch(1), batch(2));
+            List<LineageBatch> read = Lists.newArrayList();
+            assertEquals(ends[2], LineageSpool.read(ch, 0, ch.size(), 10, read));
+            assertEquals(3, read.size());
+            for (int i = 0; i < 3; i++) {
+                assertSameBatch(batch(i), read.get(i));
+            }
+            assertEquals(ends[2], LineageSpool.validLength(ch));
+        }
+    }
+
+    @Test
+    public void testReadStopsAtMax() throws IOException {
+        try (FileChannel ch = open(folder.newFile())) {
+            long[] ends = write(ch, batch(0), batch(1), batch(2));
+            List<LineageBatch> read = Lists.newArrayList();
+            assertEquals(ends[1], LineageSpool.read(ch, 0, ch.size(), 2, read));
+            assertEquals(2, read.size());
+            read.clear();
+            assertEquals(ends[2], LineageSpool.read(ch, ends[1], ch.size(), 2, read));
+            assertSameBatch(batch(2), read.get(0));
+        }
+    }
+
+    @Test
+    public void testTornTail() throws IOException {
+        try (FileChannel ch = open(folder.newFile())) {
+            long[] ends = write(ch, batch(0), batch(1));
+            ByteBuffer torn = LineageSpool.encode(batch(2));
+            torn.limit(torn.limit() / 2);
+            ch.write(torn, ends[1]);
+            assertEquals(ends[1], LineageSpool.validLength(ch));
+            // a header cut in two
+            ch.truncate(ends[1] + 5);
+            assertEquals(ends[1], LineageSpool.validLength(ch));
+            // the replayer reads up to the length recovered for the active segment
+            List<LineageBatch> read = Lists.newArrayList();
+            assertEquals(ends[1], LineageSpool.read(ch, 0, ends[1], 10, read));
+            assertEquals(2, read.size());
+        }
+    }
+
+    @Test
+    public void testCrcMismatch() throws IOException {
+        try (FileChannel ch = open(folder.newFile())) {
+            long[] ends = write(ch, batch(0), batch(1), batch(2));
+            // flip the last payload byte of the second record
+            ByteBuffer b = ByteBuffer.allocate(1);
+            ch.read(b, ends[1] - 1);
+            b.put(0, (byte) ~b.get(0));
+            b.rewind();
+            ch.write(b, ends[1] - 1);
+            assertEquals(ends[0], LineageSpool.validLength(ch));
+            List<LineageBatch> read = Lists.newArrayList();
+            // the rest of the segment is skipped
+            assertEquals(ch.size(), LineageSpool.read(ch, 0, ch.size(), 10, read));
+            assertEquals(1, read.size());
+            assertSameBatch(batch(0), read.get(0));
+        }
+    }
+
+    private static FileChannel open(File file) throws IOException {
+        return FileChannel.open(file.toPath(), StandardOpenOption.READ, StandardOpenOption.WRITE);
+    }
+
+    /**
+     * @return the offset after each record
+     */
+    private static long[] write(FileChannel ch, LineageBatch... batches) throws IOException {
+        long[] ends = new long[batches.length];
+        long offset = 0;
+        for (int i = 0; i < batches.length; i++) {
+            ByteBuffer buf = LineageSpool.encode(batches[i]);
+            while (buf.hasRemaining()) {
+                offset += ch.write(buf, offset);
+            }
+            ends[i] = offset;
+        }
+        return ends;
+    }
+
+    private static LineageBatch batch(int i) {
+        Edge edge = Edge.of(Sets.newHashSet(Vertex.of("db.s.c" + i, Vertex.Type.COLUMN, "")),
+                Sets.newHashSet(Vertex.of("db.t.c" + i, Vertex.Type.COLUMN, "")), "c" + i, "q" + i, Edge.Type.PROJECTION);
+        return new LineageBatch(ImmutableMap.of("hive.lineage.store.neo4j", "true", "hive.lineage.batch", String.valueOf(i)),
+                Collections.singletonList(edge));
+    }
+
+    private static void assertSameBatch(LineageBatch expected, LineageBatch actual) {
+        assertEquals(expected.getConf(), actual.getConf());
+        assertEquals(expected.getEdges().size(), actual.getEdges().size());
+        for (int i = 0; i < expected.getEdges().size(); i++) {
+            Edge e = expected.getEdges().get(i);
+            Edge a = actual.getEdges().get(i);
+            assertEquals(e.getType(), a.getType());
+            assertEquals(e.getExpr(), a.getExpr());
+            assertEquals(e.getHql(), a.getHql());
+            assertEquals(e.getSources(), a.getSources());
+            assertEquals(e.getTargets(), a.getTargets());
+        }
+    }
+}
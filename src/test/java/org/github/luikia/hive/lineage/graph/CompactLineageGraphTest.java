@@ -0,0 +1,216 @@
+package org.github.luikia.hive.lineage.graph;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
+import org.github.luikia.hive.lineage.Edge;
+import org.github.luikia.hive.lineage.Vertex;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.*;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * CompactLineageGraph must answer like a plain adjacency map, whether edges sit in the delta,
+ * in the compacted arrays or came back from a snapshot.
+ */
+public class CompactLineageGraphTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void testSameAsAdjacencyMap() throws IOException {
+        for (boolean predicates : new boolean[]{false, true}) {
+            Random random = new Random(predicates ? 7 : 42);
+            List<Vertex> vertices = vertices();
+            CompactLineageGraph graph = new CompactLineageGraph(predicates);
+            NaiveGraph naive = new NaiveGraph(predicates);
+
+            apply(graph, naive, randomEdges(random, vertices, 300));
+            assertSameAnswers(naive, graph, vertices);
+
+            // save() compacts the delta into the arrays
+            File file = folder.newFile();
+            graph.save(file);
+            assertSameAnswers(naive, graph, vertices);
+
+            // delta on top of compacted arrays
+            apply(graph, naive, randomEdges(random, vertices, 100));
+            assertSameAnswers(naive, graph, vertices);
+
+            graph.save(file);
+            CompactLineageGraph loaded = CompactLineageGraph.load(file);
+            assertEquals(predicates, loaded.isPredicates());
+            assertEquals(graph.getVertexCount(), loaded.getVertexCount());
+            assertSameAnswers(naive, loaded, vertices);
+
+            apply(loaded, naive, randomEdges(random, vertices, 100));
+            assertSameAnswers(naive, loaded, vertices);
+        }
+    }
+
+    @Test
+    public void testLoadRegistersMissingTables() throws IOException {
+        // a snapshot holding the columns but not their tables, edge db.s.c -> db.t.c
+        File file = folder.newFile();
+        try (DataOutputStream out = new DataOutputStream(new FileOutputStream(file))) {
+            out.writeInt(0x4C4E4753);
+            out.writeByte(1);
+            out.writeBoolean(false);
+            out.writeInt(2);
+            out.writeUTF("db.s.c");
+            out.writeByte(Vertex.Type.COLUMN.ordinal());
+            out.writeUTF("db.t.c");
+            out.writeByte(Vertex.Type.COLUMN.ordinal());
+            out.writeInt(1);
+            out.writeInt(0);
+            out.writeInt(1);
+            out.writeInt(1);
+            out.writeInt(1);
+        }
+        CompactLineageGraph graph = CompactLineageGraph.load(file);
+        assertEquals(4, graph.getVertexCount());
+        assertEquals(Sets.newHashSet("db.t.c"), graph.downstream("db.s.c", 0));
+        assertEquals(Sets.newHashSet("db.s.c"), graph.upstream("db.t.c", 0));
+        assertEquals(Sets.newHashSet("db.t"), graph.impact("db", "s", 0));
+        assertEquals(Collections.emptySet(), graph.downstream("db.t", 0));
+
+        graph.apply(Collections.singletonList(edge(Edge.Type.PROJECTION,
+                Vertex.of("db.t.c", Vertex.Type.COLUMN, ""), Vertex.of("db.u.c", Vertex.Type.COLUMN, ""))));
+        assertEquals(Sets.newHashSet("db.t", "db.u"), graph.impact("db", "s", 0));
+        assertEquals(Sets.newHashSet("db.t"), graph.impact("db", "s", 1));
+    }
+
+    private static List<Vertex> vertices() {
+        List<Vertex> vertices = Lists.newArrayList();
+        for (int t = 0; t < 12; t++) {
+            vertices.add(Vertex.of("db.t" + t, Vertex.Type.TABLE, ""));
+            for (int c = 0; c < 4; c++) {
+                vertices.add(Vertex.of("db.t" + t + ".c" + c, Vertex.Type.COLUMN, ""));
+            }
+        }
+        return vertices;
+    }
+
+    private static List<Edge> randomEdges(Random random, List<Vertex> vertices, int count) {
+        List<Edge> edges = Lists.newArrayList();
+        for (int i = 0; i < count; i++) {
+            Set<Vertex> sources = Sets.newLinkedHashSet();
+            Set<Vertex> targets = Sets.newLinkedHashSet();
+            for (int j = random.nextInt(3); j >= 0; j--) {
+                sources.add(vertices.get(random.nextInt(vertices.size())));
+            }
+            for (int j = random.nextInt(2); j >= 0; j--) {
+                targets.add(vertices.get(random.nextInt(vertices.size())));
+            }
+            Edge.Type type = random.nextInt(4) == 0 ? Edge.Type.PREDICATE : Edge.Type.PROJECTION;
+            edges.add(Edge.of(sources, targets, "x", "q" + i, type));
+        }
+        return edges;
+    }
+
+    private static void apply(CompactLineageGraph graph, NaiveGraph naive, List<Edge> edges) {
+        graph.apply(edges);
+        edges.forEach(naive::apply);
+    }
+
+    private static void assertSameAnswers(NaiveGraph naive, CompactLineageGraph graph, List<Vertex> vertices) {
+        for (Vertex v : vertices) {
+            for (int depth = 0; depth <= 3; depth++) {
+                assertEquals(v.getLabel() + " up " + depth,
+                        naive.closure(v.getLabel(), depth, true), graph.upstream(v.getLabel(), depth));
+                assertEquals(v.getLabel() + " down " + depth,
+                        naive.closure(v.getLabel(), depth, false), graph.downstream(v.getLabel(), depth));
+                if (v.getType() == Vertex.Type.TABLE) {
+                    assertEquals(v.getLabel() + " impact " + depth,
+                            naive.impact(v.getLabel(), depth), graph.impact(v.getDatabase(), v.getTable(), depth));
+                }
+            }
+        }
+        assertEquals(naive.tables.size(), graph.getVertexCount());
+    }
+
+    private static Edge edge(Edge.Type type, Vertex source, Vertex target) {
+        return Edge.of(Sets.newHashSet(source), Sets.newHashSet(target), "x", "q", type);
+    }
+
+    /**
+     * Adjacency sets keyed by label, the behaviour CompactLineageGraph documents.
+     */
+    private static final class NaiveGraph {
+        private final boolean predicates;
+        private final Map<String, Set<String>> down = Maps.newHashMap();
+        private final Map<String, Set<String>> up = Maps.newHashMap();
+        // table label of every known vertex
+        private final Map<String, String> tables = Maps.newHashMap();
+
+        NaiveGraph(boolean predicates) {
+            this.predicates = predicates;
+        }
+
+        void apply(Edge edge) {
+            if (edge.getType() == Edge.Type.PREDICATE && !predicates) return;
+            for (Vertex s : edge.getSources()) {
+                register(s);
+                for (Vertex t : edge.getTargets()) {
+                    register(t);
+                    down.computeIfAbsent(s.getLabel(), k -> Sets.newHashSet()).add(t.getLabel());
+                    up.computeIfAbsent(t.getLabel(), k -> Sets.newHashSet()).add(s.getLabel());
+                }
+            }
+        }
+
+        private void register(Vertex v) {
+            if (v.getType() == Vertex.Type.COLUMN) {
+                String table = v.getLabel().substring(0, v.getLabel().lastIndexOf('.'));
+                tables.putIfAbsent(table, table);
+                tables.putIfAbsent(v.getLabel(), table);
+            } else {
+                tables.putIfAbsent(v.getLabel(), v.getLabel());
+            }
+        }
+
+        Set<String> closure(String label, int depth, boolean upward) {
+            if (!tables.containsKey(label)) return Collections.emptySet();
+            Set<String> seen = reach(Collections.singleton(label), depth, upward ? up : down);
+            seen.remove(label);
+            return seen;
+        }
+
+        Set<String> impact(String table, int depth) {
+            if (!tables.containsKey(table)) return Collections.emptySet();
+            Set<String> start = Sets.newHashSet();
+            tables.forEach((label, t) -> {
+                if (t.equals(table)) start.add(label);
+            });
+            Set<String> result = Sets.newHashSet();
+            for (String label : reach(start, depth, down)) {
+                if (!tables.get(label).equals(table)) result.add(tables.get(label));
+            }
+            return result;
+        }
+
+        private static Set<String> reach(Set<String> start, int depth, Map<String, Set<String>> adjacency) {
+            Set<String> seen = Sets.newHashSet(start);
+            Set<String> frontier = Sets.newHashSet(start);
+            for (int d = 0; !frontier.isEmpty() && (depth <= 0 || d < depth); d++) {
+                Set<String> next = Sets.newHashSet();
+                for (String v : frontier) {
+                    for (String n : adjacency.getOrDefault(v, Collections.emptySet())) {
+                        if (seen.add(n)) next.add(n);
+                    }
+                }
+                frontier = next;
+            }
+            return seen;
+        }
+    }
+}
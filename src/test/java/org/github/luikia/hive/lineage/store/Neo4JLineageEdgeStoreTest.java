@@ -0,0 +1,103 @@
+package org.github.luikia.hive.lineage.store;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Sets;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonParser;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import org.apache.commons.io.IOUtils;
+import org.apache.hadoop.conf.Configuration;
+import org.github.luikia.hive.lineage.Edge;
+import org.github.luikia.hive.lineage.LineageStoreException;
+import org.github.luikia.hive.lineage.Vertex;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class Neo4JLineageEdgeStoreTest {
+
+    private HttpServer server;
+    private final List<String> statements = Collections.synchronizedList(Lists.newArrayList());
+    private final AtomicInteger failRequests = new AtomicInteger();
+
+    @Before
+    public void setUp() throws IOException {
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 16);
+        server.createContext("/db/data/transaction/commit", this::handle);
+        server.start();
+    }
+
+    @After
+    public void tearDown() {
+        server.stop(0);
+    }
+
+    @Test
+    public void testFailedVertexBatchIsNotCachedAsWritten() {
+        Configuration conf = new Configuration(false);
+        conf.set("hive.lineage.neo4j.url", "http://127.0.0.1:" + server.getAddress().getPort());
+        conf.set("hive.lineage.neo4j.username", "neo4j");
+        conf.set("hive.lineage.neo4j.password", "neo4j");
+        // the vertices of each side in one batch, the dependency alone in the last one
+        conf.setInt("hive.lineage.neo4j.batch.size", 2);
+        Neo4JLineageEdgeStore store = new Neo4JLineageEdgeStore();
+        store.init(conf);
+        List<Edge> edges = Collections.singletonList(Edge.of(
+                Sets.newLinkedHashSet(Collections.singleton(Vertex.of("db.s.a", Vertex.Type.COLUMN, ""))),
+                Sets.newLinkedHashSet(Collections.singleton(Vertex.of("db.t.a", Vertex.Type.COLUMN, ""))),
+                "a", "q", Edge.Type.PROJECTION));
+        try {
+            failRequests.set(1);
+            try {
+                store.store(edges);
+                fail("the first batch failed");
+            } catch (LineageStoreException expected) {
+                // the source vertices were not written, the dependency matched nothing
+            }
+            assertTrue(statements.stream().anyMatch(s -> s.contains("[r:DEP")));
+            statements.clear();
+            store.store(edges);
+            assertTrue("dependency must be sent again", statements.stream().anyMatch(s -> s.contains("[r:DEP")));
+            assertTrue(statements.stream().anyMatch(s -> s.startsWith("MERGE (c:COLUMN")));
+        } finally {
+            store.close();
+        }
+    }
+
+    private void handle(HttpExchange exchange) throws IOException {
+        try {
+            byte[] body = IOUtils.toByteArray(exchange.getRequestBody());
+            JsonElement json = new JsonParser().parse(new String(body, StandardCharsets.UTF_8));
+            json.getAsJsonObject().get("statements").getAsJsonArray()
+                    .forEach(s -> statements.add(s.getAsJsonObject().get("statement").getAsString()));
+            if (failRequests.getAndDecrement() > 0) {
+                respond(exchange, 500, "{\"errors\":[{\"code\":\"Neo.DatabaseError.General.UnknownError\"}]}");
+            } else {
+                respond(exchange, 200, "{\"results\":[],\"errors\":[]}");
+            }
+        } finally {
+            exchange.close();
+        }
+    }
+
+    private static void respond(HttpExchange exchange, int status, String body) throws IOException {
+        byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().set("Content-Type", "application/json");
+        exchange.sendResponseHeaders(status, bytes.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(bytes);
+        }
+    }
+}